@@ -0,0 +1,82 @@
+package cpl_parser_project_summer_2021.benchmarks;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cpl_parser_project_summer_2021.parser.Bytecode;
+import cpl_parser_project_summer_2021.parser.ClosureCompiler;
+import cpl_parser_project_summer_2021.parser.Executable;
+import cpl_parser_project_summer_2021.parser.JitCompiler;
+import cpl_parser_project_summer_2021.parser.Lexer;
+import cpl_parser_project_summer_2021.parser.Output;
+import cpl_parser_project_summer_2021.parser.Parser;
+import cpl_parser_project_summer_2021.parser.Program;
+import cpl_parser_project_summer_2021.parser.RandomSource;
+import cpl_parser_project_summer_2021.parser.Variables;
+
+// One program from ProgramGenerator run by each execution backend: the record interpreter with and
+// without the peephole pass, Bytecode, ClosureCompiler's closures and JitCompiler's hidden class, which
+// splits into block methods as lines grows. Compiled once in setup, so only execution is measured;
+// loopNesting > 0 exercises the fused FOR/NEXT instructions.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BackendBenchmark {
+
+    @Param({ "records", "records-no-peephole", "bytecode", "closures", "jit" })
+    public String backend;
+
+    @Param({ "2000" })
+    public int lines;
+
+    @Param({ "4" })
+    public int expressionDepth;
+
+    @Param({ "0", "3" })
+    public int loopNesting;
+
+    @Param({ "0" })
+    public double printDensity;
+
+    @Param({ "42" })
+    public long seed;
+
+    private Executable program;
+
+    @Setup
+    public void setup() throws Exception {
+        var text = new ProgramGenerator(lines, expressionDepth, loopNesting, printDensity).generate(seed);
+        var tree = new Parser(new Lexer(ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1)))).parseLines();
+        program = switch (backend) {
+            case "records" -> Program.link(tree.compile(), true);
+            case "records-no-peephole" -> Program.link(tree.compile(), false);
+            case "bytecode" -> Bytecode.assemble(tree.compile());
+            case "closures" -> ClosureCompiler.compile(tree);
+            case "jit" -> JitCompiler.compile(tree);
+            default -> throw new IllegalArgumentException("Unknown backend " + backend);
+        };
+    }
+
+    @Benchmark
+    public Variables execute() {
+        return program.execute(new Output(Writer.nullWriter()), new RandomSource(seed));
+    }
+
+}
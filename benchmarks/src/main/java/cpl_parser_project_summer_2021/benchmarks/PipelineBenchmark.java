@@ -0,0 +1,110 @@
+package cpl_parser_project_summer_2021.benchmarks;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cpl_parser_project_summer_2021.parser.Instruction;
+import cpl_parser_project_summer_2021.parser.Lexer;
+import cpl_parser_project_summer_2021.parser.Output;
+import cpl_parser_project_summer_2021.parser.ParallelParser;
+import cpl_parser_project_summer_2021.parser.ParseTree.LinesNode;
+import cpl_parser_project_summer_2021.parser.Parser;
+import cpl_parser_project_summer_2021.parser.Program;
+import cpl_parser_project_summer_2021.parser.RandomSource;
+import cpl_parser_project_summer_2021.parser.Token;
+import cpl_parser_project_summer_2021.parser.Variables;
+
+// Each stage of running a BASIC program on a program from ProgramGenerator: lexing, parsing, compiling to
+// instructions, and linking and running them as Instruction.execute does, but printing to a null Output
+// so that the console is not measured. Each stage's input is prepared once in setup. parseLinesInParallel
+// is ParallelParser on the common pool, which parses sources under 64 KB (here, 100 lines) on one thread.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({ "100", "10000" })
+    public int lines;
+
+    @Param({ "2", "6" })
+    public int expressionDepth;
+
+    @Param({ "0", "2" })
+    public int loopNesting;
+
+    @Param({ "0.1" })
+    public double printDensity;
+
+    @Param({ "42" })
+    public long seed;
+
+    private ByteBuffer source;
+    private LinesNode tree;
+    private List<Instruction> instructions;
+    private Program program;
+
+    @Setup
+    public void setup() throws Exception {
+        var text = new ProgramGenerator(lines, expressionDepth, loopNesting, printDensity).generate(seed);
+        source = ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+        tree = new Parser(new Lexer(source)).parseLines();
+        instructions = tree.compile();
+        program = Program.link(instructions);
+    }
+
+    @Benchmark
+    public void getNextToken(Blackhole blackhole) throws Exception {
+        var lexer = new Lexer(source);
+        Token token;
+        do {
+            token = lexer.getNextToken();
+            blackhole.consume(token);
+        } while (token.type() != Token.Type.EOF);
+    }
+
+    @Benchmark
+    public LinesNode parseLines() throws Exception {
+        return new Parser(new Lexer(source)).parseLines();
+    }
+
+    @Benchmark
+    public LinesNode parseLinesInParallel() throws Exception {
+        return ParallelParser.parseLines(source);
+    }
+
+    @Benchmark
+    public List<Instruction> compile() {
+        return tree.compile();
+    }
+
+    @Benchmark
+    public Variables execute() {
+        return Program.link(instructions).execute(new Output(Writer.nullWriter()), new RandomSource(seed));
+    }
+
+    // execute() without linking, as a Program shared by many runs is used
+    @Benchmark
+    public Variables executeLinked() {
+        return program.execute(new Output(Writer.nullWriter()), new RandomSource(seed));
+    }
+
+}
@@ -0,0 +1,97 @@
+package cpl_parser_project_summer_2021.benchmarks;
+
+import java.util.SplittableRandom;
+
+// Writes synthetic BASIC programs for the benchmarks. The same settings and seed always give the same
+// program. Every program parses, compiles and terminates:
+//  - lines: number of BASIC lines, END included
+//  - expressionDepth: depth of the expression tree on the right of each LET and PRINT
+//  - loopNesting: statements run inside this many nested FOR loops of two iterations each
+//  - printDensity: fraction of statements that PRINT instead of LET, from 0 to 1
+// The variables A to H hold the data; the loop variables are I, J, K, L, M and N, so loopNesting is at most 6.
+public final class ProgramGenerator {
+
+    private static final String DATA = "ABCDEFGH";
+    private static final String LOOPS = "IJKLMN";
+    private static final String[] OPERATORS = { " + ", " - ", " * ", " / " };
+    private static final String[] FUNCTIONS = { "ABS", "INT", "SQR" };
+    // Statements between the opening FORs and the closing NEXTs of a loop nest
+    private static final int BLOCK = 8;
+
+    private final int lines;
+    private final int expressionDepth;
+    private final int loopNesting;
+    private final double printDensity;
+
+    public ProgramGenerator(int lines, int expressionDepth, int loopNesting, double printDensity) {
+        if (lines < DATA.length() + 2 * loopNesting + 2) throw new IllegalArgumentException("Too few lines for the loops and variables");
+        if (expressionDepth < 1) throw new IllegalArgumentException("expressionDepth must be at least 1");
+        if (loopNesting < 0 || loopNesting > LOOPS.length()) throw new IllegalArgumentException("loopNesting must be from 0 to " + LOOPS.length());
+        if (printDensity < 0 || printDensity > 1) throw new IllegalArgumentException("printDensity must be from 0 to 1");
+        this.lines = lines;
+        this.expressionDepth = expressionDepth;
+        this.loopNesting = loopNesting;
+        this.printDensity = printDensity;
+    }
+
+    public String generate(long seed) {
+        var random = new SplittableRandom(seed);
+        var source = new StringBuilder();
+        var number = 0;
+        for (var i = 0; i < DATA.length(); i++) {
+            source.append(number += 10).append(" LET ").append(DATA.charAt(i)).append(" = ").append(random.nextInt(1, 100)).append('\n');
+        }
+        // the FORs and NEXTs of a nest take 2 * loopNesting lines, END takes the last
+        var left = lines - DATA.length() - 1;
+        while (left > 0) {
+            var nest = left >= 2 * loopNesting + 1 ? loopNesting : 0;
+            var statements = Math.min(BLOCK, left - 2 * nest);
+            for (var depth = 0; depth < nest; depth++) {
+                source.append(number += 10).append(" FOR ").append(LOOPS.charAt(depth)).append(" = 1 TO 2\n");
+            }
+            for (var i = 0; i < statements; i++) {
+                source.append(number += 10);
+                if (random.nextDouble() < printDensity) {
+                    source.append(" PRINT ");
+                } else {
+                    source.append(" LET ").append(DATA.charAt(random.nextInt(DATA.length()))).append(" = ");
+                }
+                expression(source, expressionDepth, random);
+                source.append('\n');
+            }
+            for (var depth = nest - 1; depth >= 0; depth--) {
+                source.append(number += 10).append(" NEXT ").append(LOOPS.charAt(depth)).append('\n');
+            }
+            left -= statements + 2 * nest;
+        }
+        source.append(number + 10).append(" END\n");
+        return source.toString();
+    }
+
+    // A full binary tree of the given depth over variables and small constants; division is always by a
+    // constant, and a function argument is wrapped in ABS so that SQR is defined
+    private void expression(StringBuilder source, int depth, SplittableRandom random) {
+        if (depth == 1) {
+            if (random.nextInt(3) == 0) source.append(random.nextInt(1, 10));
+            else source.append(DATA.charAt(random.nextInt(DATA.length())));
+            return;
+        }
+        var choice = random.nextInt(OPERATORS.length + 1);
+        if (choice == OPERATORS.length) {
+            source.append(FUNCTIONS[random.nextInt(FUNCTIONS.length)]).append("(ABS(");
+            expression(source, depth - 1, random);
+            source.append("))");
+        } else if (OPERATORS[choice].equals(" / ")) {
+            source.append('(');
+            expression(source, depth - 1, random);
+            source.append(" / ").append(random.nextInt(2, 10)).append(')');
+        } else {
+            source.append('(');
+            expression(source, depth - 1, random);
+            source.append(OPERATORS[choice]);
+            expression(source, depth - 1, random);
+            source.append(')');
+        }
+    }
+
+}
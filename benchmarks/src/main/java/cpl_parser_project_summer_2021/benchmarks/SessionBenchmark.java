@@ -0,0 +1,68 @@
+package cpl_parser_project_summer_2021.benchmarks;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cpl_parser_project_summer_2021.parser.Executable;
+import cpl_parser_project_summer_2021.parser.JitCompiler;
+import cpl_parser_project_summer_2021.parser.Lexer;
+import cpl_parser_project_summer_2021.parser.Output;
+import cpl_parser_project_summer_2021.parser.Parser;
+import cpl_parser_project_summer_2021.parser.RandomSource;
+import cpl_parser_project_summer_2021.parser.Session;
+import cpl_parser_project_summer_2021.parser.Variables;
+
+// Sessions of one small program on every core at once: sharing a program compiled once, against parsing
+// and compiling it again for every run
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class SessionBenchmark {
+
+    @Param({ "20", "200" })
+    public int lines;
+
+    @Param({ "42" })
+    public long seed;
+
+    private ByteBuffer source;
+    private Executable program;
+
+    @Setup
+    public void setup() throws Exception {
+        var text = new ProgramGenerator(lines, 3, 2, 0.1).generate(seed);
+        source = ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+        program = JitCompiler.compile(new Parser(new Lexer(source)).parseLines());
+    }
+
+    @Benchmark
+    public Variables sharedProgram() {
+        return new Session(program, new Output(Writer.nullWriter()), new RandomSource(seed)).run();
+    }
+
+    @Benchmark
+    public Variables compiledPerRun() throws Exception {
+        var compiled = JitCompiler.compile(new Parser(new Lexer(source)).parseLines());
+        return new Session(compiled, new Output(Writer.nullWriter()), new RandomSource(seed)).run();
+    }
+
+}
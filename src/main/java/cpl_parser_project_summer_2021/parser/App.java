@@ -8,21 +8,59 @@
 
 
 package cpl_parser_project_summer_2021.parser;
-import hu.webarticum.treeprinter.ListingTreePrinter;
 
 import java.io.*;
+import java.nio.file.Path;
 import java.util.*;
 
 
+// Usage: App [PROGRAM] [--seed N] [--tree] [--profile | --compile FILE | --run FILE]
+// PROGRAM is a BASIC source file, sample_program_2.txt if not given. Only --tree loads tree-printer.
 public class App {
+	private static final String USAGE = "Usage: App [PROGRAM] [--seed N] [--tree] [--profile | --compile FILE | --run FILE]";
+
     public static void main( String[] args ) {
+		Map<String, String> options;
+		try {
+			options = options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
     	try {
-    		var file = new FileInputStream("sample_program_2.txt");
-    		Lexer lex = new Lexer(file, getKeywords());
-			Parser parser = new Parser(lex);
-			var parseTree = parser.parseLines();
-			//System.out.println(parseTree.toString().replace("[", "[\n").replace("]", "\n]"));
-			Instruction.execute(parseTree.compile());
+			var file = Path.of(options.getOrDefault("PROGRAM", "sample_program_2.txt"));
+			// --seed N makes RND repeat from run to run
+			var random = options.containsKey("--seed") ? new RandomSource(Long.parseLong(options.get("--seed"))) : new RandomSource();
+			// --run FILE runs a program saved by --compile, without lexing or parsing anything
+			if (options.containsKey("--run")) {
+				ProgramFile.read(Path.of(options.get("--run"))).execute(Output.standard(), random);
+				return;
+			}
+			ParseTree.LinesNode parseTree;
+    		try (Lexer lex = new Lexer(file)) {
+				Parser parser = new Parser(lex);
+				parseTree = parser.parseLines();
+			}
+			if (options.containsKey("--tree")) ParseTreePrinter.print(parseTree);
+			var instructions = new ConstantFolder().fold(parseTree).compile();
+			if (options.containsKey("--compile")) {
+				// --compile FILE saves the program for --run instead of running it
+				ProgramFile.write(Bytecode.assemble(instructions), Path.of(options.get("--compile")));
+			} else if (options.containsKey("--profile")) {
+				// hot lines to stderr, call stacks for flamegraph.pl to profile.collapsed
+				var program = Program.link(instructions);
+				var profiler = new Profiler(program);
+				try {
+					program.execute(profiler, Output.standard(), random);
+				} finally {
+					System.err.print(profiler.report());
+					profiler.writeCollapsed(Path.of("profile.collapsed"));
+				}
+			} else {
+				Bytecode.assemble(instructions).execute(Output.standard(), random);
+			}
     	} 
     	catch (Exception e) {
     	      System.out.println("An error occurred.");
@@ -30,13 +68,29 @@ public class App {
     	}
     }
 
-	private static Set<String> getKeywords() throws IOException {
-    var keywords = new HashSet<String>();
-    var file = new File("keywords.txt");
-		Scanner sc = new Scanner(file);
-		while(sc.hasNextLine()) {
-			keywords.add(sc.nextLine());
+	// Options by name, and the program path under PROGRAM; IllegalArgumentException for a bad command line
+	static Map<String, String> options(String[] args) {
+		var options = new HashMap<String, String>();
+		for (var i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--seed", "--compile", "--run" -> {
+					if (i + 1 == args.length) throw new IllegalArgumentException(args[i] + " needs a value");
+					options.put(args[i], args[++i]);
+				}
+				case "--tree", "--profile" -> options.put(args[i], "");
+				default -> {
+					if (args[i].startsWith("--")) throw new IllegalArgumentException("Unknown option " + args[i]);
+					options.put("PROGRAM", args[i]);
+				}
+			}
+		}
+		if (options.containsKey("--seed")) {
+			try {
+				Long.parseLong(options.get("--seed"));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("--seed needs a whole number, not " + options.get("--seed"));
+			}
 		}
-		return keywords;
-  }
+		return options;
+	}
 }
@@ -0,0 +1,379 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static cpl_parser_project_summer_2021.parser.Instruction.*;
+
+// Compact form of a compiled program: one int per instruction, the opcode in the low 8 bits and an
+// operand (constant pool index, function number, variable slot or jump target) in the upper 24. Runs in
+// a single switch loop instead of a virtual Instruction.run call per step.
+public final class Bytecode implements Executable {
+
+    static final int OPCODE_BITS = 8;
+    static final int OPCODE_MASK = (1 << OPCODE_BITS) - 1;
+    static final int MAX_OPERAND = (1 << (32 - OPCODE_BITS)) - 1;
+
+    static final int ADD = 0;
+    static final int SUBTRACT = 1;
+    static final int MULTIPLY = 2;
+    static final int DIVIDE = 3;
+    static final int NEGATE = 4;
+    static final int FUNCTION = 5;      // operand: Instruction.FunctionName ordinal
+    static final int SET_VAR = 6;       // operand: variable slot
+    static final int GET_VAR = 7;       // operand: variable slot
+    static final int PRINT = 8;
+    static final int PRINT_NEW_LINE = 9;
+    static final int PUSH_NUMBER = 10;  // operand: index into numbers
+    static final int PUSH_STRING = 11;  // operand: index into strings
+    static final int END = 12;
+    static final int COMPARE = 13;      // operand: Instruction.Comparison ordinal
+    static final int AND = 14;
+    static final int OR = 15;
+    static final int NOT = 16;
+    static final int JUMP = 17;         // operand: instruction index
+    static final int JUMP_IF = 18;      // operand: instruction index
+    static final int CALL = 19;         // operand: instruction index
+    static final int RETURN = 20;
+    static final int GOTO_COMPUTED = 21;
+    static final int GOSUB_COMPUTED = 22;
+    static final int FAIL = 23;         // operand: index into strings
+    static final int FOR = 24;          // operand: index into loops
+    static final int NEXT = 25;         // operand: variable slot
+
+    // Superinstructions (see Peephole)
+    static final int ADD_CONSTANT = 26;         // operand: index into numbers
+    static final int SUBTRACT_CONSTANT = 27;    // operand: index into numbers
+    static final int MULTIPLY_CONSTANT = 28;    // operand: index into numbers
+    static final int DIVIDE_CONSTANT = 29;      // operand: index into numbers
+    static final int ADD_VAR = 30;              // operand: variable slot
+    static final int SUBTRACT_VAR = 31;         // operand: variable slot
+    static final int MULTIPLY_VAR = 32;         // operand: variable slot
+    static final int DIVIDE_VAR = 33;           // operand: variable slot
+    static final int INCREMENT_VAR = 34;        // operand: index into increments
+    static final int JUMP_IF_VAR_COMPARE = 35;  // operand: index into compares
+
+    // RND, drawing from the run's RandomSource
+    static final int RANDOM = 36;
+
+    // One more than the highest opcode; ProgramFile.VERSION must change whenever an opcode does
+    static final int OPCODES = 37;
+
+    private static final FunctionName[] FUNCTIONS = FunctionName.values();
+    private static final Comparison[] COMPARISONS = Comparison.values();
+
+    // Read by ProgramFile
+    final int[] code;
+    final double[] numbers;
+    final String[] strings;
+    final String[] variables;
+    final ForLoop[] loops;
+    final IncrementVar[] increments;
+    final JumpIfVarCompare[] compares;
+    final LineTable lines;
+    final int maxStack;
+
+    Bytecode(int[] code, double[] numbers, String[] strings, String[] variables, ForLoop[] loops,
+            IncrementVar[] increments, JumpIfVarCompare[] compares, LineTable lines, int maxStack) {
+        this.code = code;
+        this.numbers = numbers;
+        this.strings = strings;
+        this.variables = variables;
+        this.loops = loops;
+        this.increments = increments;
+        this.compares = compares;
+        this.lines = lines;
+        this.maxStack = maxStack;
+    }
+
+    public static Bytecode assemble(List<Instruction> instructions) {
+        return assemble(Program.link(instructions));
+    }
+
+    // Instruction indices, and so jump targets, are the same as in the linked program
+    public static Bytecode assemble(Program program) {
+        var instructions = program.code();
+        var code = new int[instructions.size()];
+        var numbers = new ArrayList<Double>();
+        var numberIndex = new HashMap<Double, Integer>();
+        var strings = new ArrayList<String>();
+        var stringIndex = new HashMap<String, Integer>();
+        var loops = new ArrayList<ForLoop>();
+        var increments = new ArrayList<IncrementVar>();
+        var compares = new ArrayList<JumpIfVarCompare>();
+        var depth = 0;
+        var maxStack = 0;
+        for (var i = 0; i < code.length; i++) {
+            var instruction = instructions.get(i);
+            if (instruction instanceof Addition) {
+                code[i] = ADD;
+            } else if (instruction instanceof Subtraction) {
+                code[i] = SUBTRACT;
+            } else if (instruction instanceof Multiplication) {
+                code[i] = MULTIPLY;
+            } else if (instruction instanceof Division) {
+                code[i] = DIVIDE;
+            } else if (instruction instanceof Negation) {
+                code[i] = NEGATE;
+            } else if (instruction instanceof Function function) {
+                code[i] = encode(FUNCTION, function.name().ordinal());
+            } else if (instruction instanceof StoreVar storeVar) {
+                code[i] = encode(SET_VAR, storeVar.slot());
+            } else if (instruction instanceof LoadVar loadVar) {
+                code[i] = encode(GET_VAR, loadVar.slot());
+            } else if (instruction instanceof Print) {
+                code[i] = PRINT;
+            } else if (instruction instanceof PrintNewLine) {
+                code[i] = PRINT_NEW_LINE;
+            } else if (instruction instanceof RandomNumber) {
+                code[i] = RANDOM;
+            } else if (instruction instanceof PushConstant push && push.constant() instanceof Double number) {
+                code[i] = encode(PUSH_NUMBER, intern(numbers, numberIndex, number));
+            } else if (instruction instanceof PushConstant push && push.constant() instanceof String string) {
+                code[i] = encode(PUSH_STRING, intern(strings, stringIndex, string));
+            } else if (instruction instanceof End) {
+                code[i] = END;
+            } else if (instruction instanceof Compare compare) {
+                code[i] = encode(COMPARE, compare.comparison().ordinal());
+            } else if (instruction instanceof And) {
+                code[i] = AND;
+            } else if (instruction instanceof Or) {
+                code[i] = OR;
+            } else if (instruction instanceof Not) {
+                code[i] = NOT;
+            } else if (instruction instanceof Jump jump) {
+                code[i] = encode(JUMP, jump.target());
+            } else if (instruction instanceof JumpIf jump) {
+                code[i] = encode(JUMP_IF, jump.target());
+            } else if (instruction instanceof Call call) {
+                code[i] = encode(CALL, call.target());
+            } else if (instruction instanceof Return) {
+                code[i] = RETURN;
+            } else if (instruction instanceof ComputedGoto) {
+                code[i] = GOTO_COMPUTED;
+            } else if (instruction instanceof ComputedGosub) {
+                code[i] = GOSUB_COMPUTED;
+            } else if (instruction instanceof ForLoop loop) {
+                loops.add(loop);
+                code[i] = encode(FOR, loops.size() - 1);
+            } else if (instruction instanceof OperateConstant operate) {
+                code[i] = encode(ADD_CONSTANT + operate.operation().ordinal(), intern(numbers, numberIndex, operate.constant()));
+            } else if (instruction instanceof OperateVar operate) {
+                code[i] = encode(ADD_VAR + operate.operation().ordinal(), operate.slot());
+            } else if (instruction instanceof IncrementVar increment) {
+                increments.add(increment);
+                code[i] = encode(INCREMENT_VAR, increments.size() - 1);
+            } else if (instruction instanceof JumpIfVarCompare compare) {
+                compares.add(compare);
+                code[i] = encode(JUMP_IF_VAR_COMPARE, compares.size() - 1);
+            } else if (instruction instanceof NextLoop next) {
+                code[i] = encode(NEXT, next.slot());
+            } else if (instruction instanceof Fail fail) {
+                code[i] = encode(FAIL, intern(strings, stringIndex, fail.message()));
+            } else {
+                throw new UnsupportedOperationException("Cannot assemble " + instruction);
+            }
+            depth += stackEffect(code[i] & OPCODE_MASK);
+            maxStack = Math.max(maxStack, depth);
+        }
+        return new Bytecode(code, numbers.stream().mapToDouble(Double::doubleValue).toArray(), strings.toArray(String[]::new),
+                program.variables().toArray(String[]::new), loops.toArray(ForLoop[]::new),
+                increments.toArray(IncrementVar[]::new), compares.toArray(JumpIfVarCompare[]::new), program.lines(), maxStack);
+    }
+
+    private static int encode(int opcode, int operand) {
+        if (operand > MAX_OPERAND) throw new UnsupportedOperationException("Operand overflow");
+        return opcode | operand << OPCODE_BITS;
+    }
+
+    private static <T> int intern(List<T> pool, HashMap<T, Integer> index, T value) {
+        return index.computeIfAbsent(value, v -> {
+            pool.add(v);
+            return pool.size() - 1;
+        });
+    }
+
+    static int stackEffect(int opcode) {
+        return switch (opcode) {
+            case ADD, SUBTRACT, MULTIPLY, DIVIDE, SET_VAR, PRINT, COMPARE, AND, OR, JUMP_IF, GOTO_COMPUTED, GOSUB_COMPUTED -> -1;
+            case FOR -> -2;
+            case GET_VAR, PUSH_NUMBER, PUSH_STRING -> 1;
+            default -> 0;
+        };
+    }
+
+    // How many values the instruction reads from the stack, popped or replaced in place
+    static int stackInputs(int opcode) {
+        return switch (opcode) {
+            case ADD, SUBTRACT, MULTIPLY, DIVIDE, COMPARE, AND, OR, FOR -> 2;
+            case NEGATE, FUNCTION, RANDOM, NOT, SET_VAR, PRINT, JUMP_IF, GOTO_COMPUTED, GOSUB_COMPUTED, ADD_CONSTANT,
+                    SUBTRACT_CONSTANT, MULTIPLY_CONSTANT, DIVIDE_CONSTANT, ADD_VAR, SUBTRACT_VAR, MULTIPLY_VAR, DIVIDE_VAR -> 1;
+            default -> 0;
+        };
+    }
+
+    // Whether the instruction can go somewhere other than the next one; assemble only emits these with an
+    // empty stack, since every statement leaves it empty
+    static boolean branches(int opcode) {
+        return switch (opcode) {
+            case JUMP, JUMP_IF, CALL, RETURN, GOTO_COMPUTED, GOSUB_COMPUTED, FOR, NEXT, JUMP_IF_VAR_COMPARE -> true;
+            default -> false;
+        };
+    }
+
+    // Same representation as OperandStack and Variables, kept in locals: numbers in one lane, strings in the other
+    @Override
+    public Variables execute(Output output, RandomSource random) {
+        try {
+            return run(output, random);
+        } finally {
+            output.flush();
+        }
+    }
+
+    private Variables run(Output output, RandomSource random) {
+        var numbers = new double[maxStack];
+        var references = new Object[maxStack];
+        var sp = 0;
+        var vars = new Variables(List.of(variables));
+        var varNumbers = vars.numbers;
+        var varReferences = vars.references;
+        var loopStack = new LoopStack();
+        var returns = new int[16];
+        var depth = 0;
+        var pc = 0;
+        while (pc < code.length) {
+            var word = code[pc++];
+            switch (word & OPCODE_MASK) {
+                case ADD -> {
+                    sp--;
+                    numbers[sp - 1] = number(numbers, references, sp - 1) + number(numbers, references, sp);
+                }
+                case SUBTRACT -> {
+                    sp--;
+                    numbers[sp - 1] = number(numbers, references, sp - 1) - number(numbers, references, sp);
+                }
+                case MULTIPLY -> {
+                    sp--;
+                    numbers[sp - 1] = number(numbers, references, sp - 1) * number(numbers, references, sp);
+                }
+                case DIVIDE -> {
+                    sp--;
+                    numbers[sp - 1] = number(numbers, references, sp - 1) / number(numbers, references, sp);
+                }
+                case NEGATE -> numbers[sp - 1] = -number(numbers, references, sp - 1);
+                case FUNCTION -> numbers[sp - 1] = FUNCTIONS[word >>> OPCODE_BITS].apply(number(numbers, references, sp - 1));
+                case RANDOM -> numbers[sp - 1] = random.next(number(numbers, references, sp - 1));
+                case SET_VAR -> {
+                    sp--;
+                    varNumbers[word >>> OPCODE_BITS] = numbers[sp];
+                    varReferences[word >>> OPCODE_BITS] = references[sp];
+                    references[sp] = null;
+                }
+                case GET_VAR -> {
+                    numbers[sp] = varNumbers[word >>> OPCODE_BITS];
+                    references[sp++] = varReferences[word >>> OPCODE_BITS];
+                }
+                case PRINT -> {
+                    sp--;
+                    if (references[sp] == null) {
+                        output.print(numbers[sp]);
+                    } else {
+                        output.print(String.valueOf(references[sp]));
+                        references[sp] = null;
+                    }
+                }
+                case PRINT_NEW_LINE -> output.newLine();
+                case PUSH_NUMBER -> numbers[sp++] = this.numbers[word >>> OPCODE_BITS];
+                case PUSH_STRING -> references[sp++] = strings[word >>> OPCODE_BITS];
+                case END -> {
+                    return vars;
+                }
+                case COMPARE -> {
+                    sp--;
+                    numbers[sp - 1] = compare(COMPARISONS[word >>> OPCODE_BITS], numbers, references, sp - 1);
+                }
+                case AND -> {
+                    sp--;
+                    numbers[sp - 1] = number(numbers, references, sp - 1) != 0 && number(numbers, references, sp) != 0 ? 1 : 0;
+                }
+                case OR -> {
+                    sp--;
+                    numbers[sp - 1] = number(numbers, references, sp - 1) != 0 || number(numbers, references, sp) != 0 ? 1 : 0;
+                }
+                case NOT -> numbers[sp - 1] = number(numbers, references, sp - 1) == 0 ? 1 : 0;
+                case JUMP -> pc = word >>> OPCODE_BITS;
+                case JUMP_IF -> {
+                    if (number(numbers, references, --sp) != 0) pc = word >>> OPCODE_BITS;
+                }
+                case CALL, GOSUB_COMPUTED -> {
+                    var target = (word & OPCODE_MASK) == CALL ? word >>> OPCODE_BITS : target(number(numbers, references, --sp));
+                    if (depth == returns.length) returns = Arrays.copyOf(returns, depth * 2);
+                    returns[depth++] = pc;
+                    pc = target;
+                }
+                case RETURN -> {
+                    if (depth == 0) throw new IllegalStateException("RETURN without GOSUB");
+                    pc = returns[--depth];
+                }
+                case GOTO_COMPUTED -> pc = target(number(numbers, references, --sp));
+                case ADD_CONSTANT -> numbers[sp - 1] = number(numbers, references, sp - 1) + this.numbers[word >>> OPCODE_BITS];
+                case SUBTRACT_CONSTANT -> numbers[sp - 1] = number(numbers, references, sp - 1) - this.numbers[word >>> OPCODE_BITS];
+                case MULTIPLY_CONSTANT -> numbers[sp - 1] = number(numbers, references, sp - 1) * this.numbers[word >>> OPCODE_BITS];
+                case DIVIDE_CONSTANT -> numbers[sp - 1] = number(numbers, references, sp - 1) / this.numbers[word >>> OPCODE_BITS];
+                case ADD_VAR -> numbers[sp - 1] = number(numbers, references, sp - 1) + number(varNumbers, varReferences, word >>> OPCODE_BITS);
+                case SUBTRACT_VAR -> numbers[sp - 1] = number(numbers, references, sp - 1) - number(varNumbers, varReferences, word >>> OPCODE_BITS);
+                case MULTIPLY_VAR -> numbers[sp - 1] = number(numbers, references, sp - 1) * number(varNumbers, varReferences, word >>> OPCODE_BITS);
+                case DIVIDE_VAR -> numbers[sp - 1] = number(numbers, references, sp - 1) / number(varNumbers, varReferences, word >>> OPCODE_BITS);
+                case INCREMENT_VAR -> {
+                    var increment = increments[word >>> OPCODE_BITS];
+                    varNumbers[increment.slot()] = number(varNumbers, varReferences, increment.slot()) + increment.amount();
+                }
+                case JUMP_IF_VAR_COMPARE -> {
+                    var compare = compares[word >>> OPCODE_BITS];
+                    if (compare.comparison().test(number(varNumbers, varReferences, compare.slot()), compare.constant())) pc = compare.target();
+                }
+                case FOR -> {
+                    var loop = loops[word >>> OPCODE_BITS];
+                    sp -= 2;
+                    var limit = number(numbers, references, sp + 1);
+                    var initial = number(numbers, references, sp);
+                    varNumbers[loop.slot()] = initial;
+                    varReferences[loop.slot()] = null;
+                    if (LoopStack.finished(initial, limit, loop.step())) pc = loop.exit();
+                    else loopStack.enter(loop.slot(), limit, loop.step(), pc);
+                }
+                case NEXT -> pc = loopStack.next(word >>> OPCODE_BITS, varNumbers, varReferences, pc);
+                case FAIL -> throw new IllegalStateException(strings[word >>> OPCODE_BITS]);
+                default -> throw new IllegalStateException("Bad opcode " + (word & OPCODE_MASK));
+            }
+        }
+        return vars;
+    }
+
+    private int target(double line) {
+        var target = lines.index((int) line);
+        if (target < 0) throw new IllegalStateException("Undefined line " + (int) line);
+        return target;
+    }
+
+    // Compares the top two values, numbers or strings, leaving 1 or 0 in place of the lower one
+    private static double compare(Comparison comparison, double[] numbers, Object[] references, int index) {
+        if (references[index + 1] == null) {
+            return comparison.test(number(numbers, references, index), numbers[index + 1]) ? 1 : 0;
+        }
+        if (!(references[index] instanceof String lhs)) throw new ClassCastException("Expected a string but found a number");
+        var rhs = (String) references[index + 1];
+        references[index] = null;
+        references[index + 1] = null;
+        return comparison.test(lhs.compareTo(rhs), 0) ? 1 : 0;
+    }
+
+    private static double number(double[] numbers, Object[] references, int index) {
+        if (references[index] != null) throw new ClassCastException("Expected a number but found " + references[index]);
+        return numbers[index];
+    }
+
+}
@@ -0,0 +1,375 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+// Just enough of the JVM class file format for JitCompiler: a constant pool, static methods and their
+// Code with a StackMapTable. Every frame the JIT needs has an empty operand stack and the same locals
+// (all initialized at the start of the method), so each recorded frame is written as that full_frame.
+final class ClassFileWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // Java 16
+    private static final int MAJOR_VERSION = 60;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    // Verification types for frame locals
+    static final int ITEM_INTEGER = 1;
+    static final int ITEM_DOUBLE = 3;
+    static final int ITEM_OBJECT = 7;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+    private final String name;
+    private final List<byte[]> methods = new ArrayList<>();
+
+    // name is the internal name, e.g. "java/lang/Object"
+    ClassFileWriter(String name) {
+        this.name = name;
+    }
+
+    int utf8(String value) {
+        if (modifiedUtf8Length(value) > 0xFFFF) throw new UnsupportedOperationException("String constant too long");
+        return constant("U" + value, 1, out -> {
+            out.writeByte(CONSTANT_UTF8);
+            out.writeUTF(value);
+        });
+    }
+
+    // The length of value in the class file's modified UTF-8, where NUL takes two bytes
+    private static int modifiedUtf8Length(String value) {
+        var length = value.length();
+        for (var i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            if (c == 0 || c > 0x7F) length += c > 0x7FF ? 2 : 1;
+        }
+        return length;
+    }
+
+    int classRef(String internalName) {
+        var utf8 = utf8(internalName);
+        return constant("C" + internalName, 1, out -> {
+            out.writeByte(CONSTANT_CLASS);
+            out.writeShort(utf8);
+        });
+    }
+
+    int string(String value) {
+        var utf8 = utf8(value);
+        return constant("S" + value, 1, out -> {
+            out.writeByte(CONSTANT_STRING);
+            out.writeShort(utf8);
+        });
+    }
+
+    int integer(int value) {
+        return constant("I" + value, 1, out -> {
+            out.writeByte(CONSTANT_INTEGER);
+            out.writeInt(value);
+        });
+    }
+
+    // Takes two constant pool entries, as the format requires
+    int doubleConstant(double value) {
+        var bits = Double.doubleToRawLongBits(value);
+        return constant("D" + bits, 2, out -> {
+            out.writeByte(CONSTANT_DOUBLE);
+            out.writeLong(bits);
+        });
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        var owningClass = classRef(owner);
+        var nameIndex = utf8(name);
+        var descriptorIndex = utf8(descriptor);
+        var nameAndType = constant("N" + name + ":" + descriptor, 1, out -> {
+            out.writeByte(CONSTANT_NAME_AND_TYPE);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return constant("M" + owner + "." + name + ":" + descriptor, 1, out -> {
+            out.writeByte(CONSTANT_METHODREF);
+            out.writeShort(owningClass);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private interface Entry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, int size, Entry entry) {
+        var index = poolIndex.get(key);
+        if (index != null) return index;
+        try {
+            entry.write(pool);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = poolCount;
+        poolCount += size;
+        if (poolCount > 0xFFFF) throw new UnsupportedOperationException("Constant pool overflow");
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    void method(int access, String name, String descriptor, Code code) {
+        var nameIndex = utf8(name);
+        var descriptorIndex = utf8(descriptor);
+        var codeAttribute = utf8("Code");
+        var body = code.toBytes();
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+            out.writeShort(codeAttribute);
+            out.writeInt(body.length);
+            out.write(body);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toBytes(int access, String superName) {
+        var thisClass = classRef(name);
+        var superClass = classRef(superName);
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(MAJOR_VERSION);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);  // interfaces
+            out.writeShort(0);  // fields
+            out.writeShort(methods.size());
+            for (var method : methods) out.write(method);
+            out.writeShort(0);  // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Thrown for a method whose code, or a branch within it, does not fit the class file format
+    static final class MethodTooLargeException extends UnsupportedOperationException {
+
+        private static final long serialVersionUID = 1L;
+
+        MethodTooLargeException(String message) {
+            super(message);
+        }
+
+    }
+
+    // A method body with forward-referencing labels. Branches use 16-bit offsets; a method too large for
+    // them is rejected with MethodTooLargeException.
+    final class Code {
+
+        private byte[] bytes = new byte[256];
+        private int length;
+        private final int[] labels;
+        private final List<int[]> fixups = new ArrayList<>();  // {label, offset field position, instruction start, width}
+        private final BitSet referenced = new BitSet();
+        private final TreeSet<Integer> frames = new TreeSet<>();
+        private byte[] frameLocals;
+        private int frameLocalCount;
+        private int maxStack;
+        private int maxLocals;
+
+        Code(int labelCount) {
+            labels = new int[labelCount];
+            Arrays.fill(labels, -1);
+        }
+
+        // The locals every frame declares, as verification type items
+        void frameLocals(int count, byte[] items, int maxLocals) {
+            frameLocalCount = count;
+            frameLocals = items;
+            this.maxLocals = maxLocals;
+        }
+
+        void maxStack(int maxStack) {
+            this.maxStack = maxStack;
+        }
+
+        int offset() {
+            return length;
+        }
+
+        void bind(int label) {
+            labels[label] = length;
+        }
+
+        // Whether a jump or switch so far goes to label
+        boolean referenced(int label) {
+            return referenced.get(label);
+        }
+
+        // Records a stack map frame at the current offset, for a branch target or code after a jump
+        void frame() {
+            frames.add(length);
+        }
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        void op(int opcode, int u2) {
+            u1(opcode);
+            u2(u2);
+        }
+
+        // Load or store of local variable index, widened if needed
+        void local(int opcode, int index) {
+            if (index > 0xFF) {
+                u1(0xC4);
+                u1(opcode);
+                u2(index);
+            } else {
+                u1(opcode);
+                u1(index);
+            }
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(0x03 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(0x10);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(0x11);
+                u2(value);
+            } else {
+                op(0x13, integer(value));
+            }
+        }
+
+        void jump(int opcode, int label) {
+            var start = length;
+            u1(opcode);
+            fixups.add(new int[] { label, length, start, 2 });
+            referenced.set(label);
+            u2(0);
+        }
+
+        void tableSwitch(int low, int[] targets, int defaultLabel) {
+            var start = length;
+            u1(0xAA);
+            while (length % 4 != 0) u1(0);
+            switchTarget(defaultLabel, start);
+            u4(low);
+            u4(low + targets.length - 1);
+            for (var target : targets) switchTarget(target, start);
+        }
+
+        // keys must be sorted
+        void lookupSwitch(int[] keys, int[] targets, int defaultLabel) {
+            var start = length;
+            u1(0xAB);
+            while (length % 4 != 0) u1(0);
+            switchTarget(defaultLabel, start);
+            u4(keys.length);
+            for (var i = 0; i < keys.length; i++) {
+                u4(keys[i]);
+                switchTarget(targets[i], start);
+            }
+        }
+
+        private void switchTarget(int label, int start) {
+            fixups.add(new int[] { label, length, start, 4 });
+            referenced.set(label);
+            u4(0);
+        }
+
+        private void u1(int value) {
+            if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+            bytes[length++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        private void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        private byte[] toBytes() {
+            if (length > 0xFFFF) throw new MethodTooLargeException("Method too large");
+            for (var fixup : fixups) {
+                var target = labels[fixup[0]];
+                if (target < 0) throw new IllegalStateException("Unbound label " + fixup[0]);
+                var offset = target - fixup[2];
+                if (fixup[3] == 2) {
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) throw new MethodTooLargeException("Branch too far");
+                    bytes[fixup[1]] = (byte) (offset >> 8);
+                    bytes[fixup[1] + 1] = (byte) offset;
+                } else {
+                    for (var i = 0; i < 4; i++) bytes[fixup[1] + i] = (byte) (offset >> (24 - 8 * i));
+                }
+            }
+            var stackMapTable = frames.isEmpty() ? 0 : utf8("StackMapTable");
+            var out = new ByteArrayOutputStream();
+            try (var data = new DataOutputStream(out)) {
+                data.writeShort(maxStack);
+                data.writeShort(maxLocals);
+                data.writeInt(length);
+                data.write(bytes, 0, length);
+                data.writeShort(0);  // exception table
+                data.writeShort(frames.isEmpty() ? 0 : 1);
+                if (!frames.isEmpty()) {
+                    var table = new ByteArrayOutputStream();
+                    var entries = new DataOutputStream(table);
+                    entries.writeShort(frames.size());
+                    var previous = -1;
+                    for (var offset : frames) {
+                        entries.writeByte(255);  // full_frame
+                        entries.writeShort(offset - previous - 1);
+                        entries.writeShort(frameLocalCount);
+                        entries.write(frameLocals);
+                        entries.writeShort(0);  // empty stack
+                        previous = offset;
+                    }
+                    data.writeShort(stackMapTable);
+                    data.writeInt(table.size());
+                    data.write(table.toByteArray());
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return out.toByteArray();
+        }
+
+    }
+
+}
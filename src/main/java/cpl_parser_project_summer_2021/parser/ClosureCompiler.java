@@ -0,0 +1,337 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cpl_parser_project_summer_2021.parser.ClosureProgram.Condition;
+import cpl_parser_project_summer_2021.parser.ClosureProgram.Expression;
+import cpl_parser_project_summer_2021.parser.ClosureProgram.Statement;
+import cpl_parser_project_summer_2021.parser.Instruction.Comparison;
+
+import static cpl_parser_project_summer_2021.parser.ParseTree.*;
+
+// Compiles a parse tree straight into closures, a tier between the instruction interpreters and
+// JitCompiler. Each expression becomes a tree of lambdas with no operand stack in between, with nodes
+// specialized for the common shapes (a constant, a variable, var op var, var op constant, var compared
+// with a constant) so that HotSpot can inline them. Conditions stay booleans instead of 1/0 until a
+// value is needed. Like JitCompiler, it only handles numeric variables: a string stored in a variable
+// or used in arithmetic is rejected with UnsupportedOperationException.
+public final class ClosureCompiler {
+
+    private final Variables symbols = new Variables();
+    private final List<StatementTree> statements = new ArrayList<>();
+    private final List<Integer> undefinedLines = new ArrayList<>();
+    private LineTable lines;
+
+    private ClosureCompiler() {
+    }
+
+    public static ClosureProgram compile(LinesNode tree) {
+        return new ClosureCompiler().build(tree);
+    }
+
+    // The compiled program, or the linked instructions (to be interpreted) if it cannot be compiled
+    public static Executable compileOrInterpret(LinesNode tree) {
+        try {
+            return compile(tree);
+        } catch (UnsupportedOperationException e) {
+            return Program.link(tree.compile());
+        }
+    }
+
+    private ClosureProgram build(LinesNode tree) {
+        // one statement per index, NEXT I, J split into NEXT I and NEXT J
+        var numbers = new int[tree.lines().size()];
+        var starts = new int[numbers.length];
+        for (var i = 0; i < numbers.length; i++) {
+            var line = tree.lines().get(i);
+            numbers[i] = (int) line.number().value();
+            starts[i] = statements.size();
+            for (var statement : line.statements()) {
+                if (statement instanceof NextNode next) {
+                    for (var var : next.vars()) statements.add(new NextNode(List.of(var)));
+                } else if (!(statement instanceof BlankStatementNode)) {
+                    statements.add(statement);
+                }
+            }
+        }
+        lines = new LineTable(numbers, starts);
+        var code = new ArrayList<Statement>(statements.size());
+        for (var pc = 0; pc < statements.size(); pc++) code.add(statement(pc, statements.get(pc)));
+        if (!undefinedLines.isEmpty()) {
+            code.add((vars, interpreter, pc) -> ClosureProgram.STOP);
+            for (var line : undefinedLines) {
+                code.add((vars, interpreter, pc) -> {
+                    throw new IllegalStateException("Undefined line " + line);
+                });
+            }
+        }
+        return new ClosureProgram(code.toArray(Statement[]::new), symbols.names(), lines);
+    }
+
+    private Statement statement(int index, StatementTree statement) {
+        if (statement instanceof LetNode let) {
+            return let(let);
+        } else if (statement instanceof PrintNode print) {
+            return print(print);
+        } else if (statement instanceof EndNode || statement instanceof StopNode) {
+            return (vars, interpreter, pc) -> ClosureProgram.STOP;
+        } else if (statement instanceof GotoNode jump) {
+            if (jump.destination() instanceof NumberNode line) {
+                var target = target(line);
+                return (vars, interpreter, pc) -> target;
+            }
+            var destination = number(jump.destination());
+            return (vars, interpreter, pc) -> interpreter.target((int) destination.eval(vars, interpreter));
+        } else if (statement instanceof GosubNode call) {
+            if (call.destination() instanceof NumberNode line) {
+                var target = target(line);
+                return (vars, interpreter, pc) -> {
+                    interpreter.pushReturn(pc + 1);
+                    return target;
+                };
+            }
+            var destination = number(call.destination());
+            return (vars, interpreter, pc) -> {
+                var target = interpreter.target((int) destination.eval(vars, interpreter));
+                interpreter.pushReturn(pc + 1);
+                return target;
+            };
+        } else if (statement instanceof ReturnNode) {
+            return (vars, interpreter, pc) -> interpreter.popReturn();
+        } else if (statement instanceof IfNode branch) {
+            var condition = condition(branch.condition());
+            var target = target(branch.destination());
+            return (vars, interpreter, pc) -> condition.test(vars, interpreter) ? target : pc + 1;
+        } else if (statement instanceof ForNode loop) {
+            return loop(index, loop);
+        } else if (statement instanceof NextNode next) {
+            var slot = symbols.slot(next.vars().get(0));
+            return (vars, interpreter, pc) -> interpreter.loops.next(slot, vars, interpreter.vars.references, pc + 1);
+        }
+        throw new UnsupportedOperationException("Cannot compile " + statement);
+    }
+
+    // Index of the first statement of line. Jumping to an undefined line fails only if the jump is taken,
+    // so it goes to a trap placed after the program, behind a STOP, as Program.link does.
+    private int target(NumberNode line) {
+        var number = (int) line.value();
+        var target = lines.index(number);
+        if (target >= 0) return target;
+        if (!undefinedLines.contains(number)) undefinedLines.add(number);
+        return statements.size() + 1 + undefinedLines.indexOf(number);
+    }
+
+    private Statement let(LetNode let) {
+        if (let.value() instanceof BinaryExpressionNode binary && binary.operation() == BinaryOperation.ADD
+                && binary.left() instanceof VarNode var && var.name().equals(let.name()) && binary.right() instanceof NumberNode amount) {
+            var slot = symbols.slot(let.name());
+            var constant = amount.value();
+            return (vars, interpreter, pc) -> {
+                vars[slot] += constant;
+                return pc + 1;
+            };
+        }
+        var value = number(let.value());
+        var slot = symbols.slot(let.name());
+        return (vars, interpreter, pc) -> {
+            vars[slot] = value.eval(vars, interpreter);
+            return pc + 1;
+        };
+    }
+
+    private Statement print(PrintNode print) {
+        var count = print.values().size();
+        var texts = new String[count];
+        var values = new Expression[count];
+        for (var i = 0; i < count; i++) {
+            if (print.values().get(i) instanceof StringNode string) texts[i] = string.value();
+            else values[i] = number(print.values().get(i));
+        }
+        return (vars, interpreter, pc) -> {
+            var output = interpreter.output;
+            for (var i = 0; i < texts.length; i++) {
+                if (texts[i] != null) output.print(texts[i]);
+                else output.print(values[i].eval(vars, interpreter));
+            }
+            output.newLine();
+            return pc + 1;
+        };
+    }
+
+    private Statement loop(int index, ForNode loop) {
+        if (loop.step() != null && !(loop.step() instanceof NumberNode)) throw new UnsupportedOperationException("STEP must be a number");
+        var from = number(loop.from());
+        var to = number(loop.to());
+        var slot = symbols.slot(loop.var());
+        var step = loop.step() == null ? 1 : ((NumberNode) loop.step()).value();
+        var exit = -1;
+        for (var i = index + 1; i < statements.size() && exit < 0; i++) {
+            if (statements.get(i) instanceof NextNode next && next.vars().get(0).equals(loop.var())) exit = i + 1;
+        }
+        if (exit < 0) {
+            var message = "FOR " + loop.var() + " without NEXT";
+            return (vars, interpreter, pc) -> {
+                var initial = from.eval(vars, interpreter);
+                var limit = to.eval(vars, interpreter);
+                vars[slot] = initial;
+                if (LoopStack.finished(initial, limit, step)) throw new IllegalStateException(message);
+                interpreter.loops.enter(slot, limit, step, pc + 1);
+                return pc + 1;
+            };
+        }
+        var end = exit;
+        return (vars, interpreter, pc) -> {
+            var initial = from.eval(vars, interpreter);
+            var limit = to.eval(vars, interpreter);
+            vars[slot] = initial;
+            if (LoopStack.finished(initial, limit, step)) return end;
+            interpreter.loops.enter(slot, limit, step, pc + 1);
+            return pc + 1;
+        };
+    }
+
+    // A numeric expression
+    private Expression number(ExpressionTree expression) {
+        if (expression instanceof NumberNode number) {
+            var value = number.value();
+            return (vars, interpreter) -> value;
+        } else if (expression instanceof VarNode var) {
+            var slot = symbols.slot(var.name());
+            return (vars, interpreter) -> vars[slot];
+        } else if (expression instanceof UnaryExpressionNode unary && unary.operation() == UnaryOperation.NEGATE) {
+            var operand = number(unary.operand());
+            return (vars, interpreter) -> -operand.eval(vars, interpreter);
+        } else if (expression instanceof FunctionExpressionNode function) {
+            var argument = number(function.argument());
+            return switch (function.name()) {
+                case ABS -> (vars, interpreter) -> Math.abs(argument.eval(vars, interpreter));
+                case INT -> (vars, interpreter) -> Math.rint(argument.eval(vars, interpreter));
+                case SQR -> (vars, interpreter) -> Math.sqrt(argument.eval(vars, interpreter));
+                case RND -> (vars, interpreter) -> interpreter.random.next(argument.eval(vars, interpreter));
+                default -> {
+                    var name = Instruction.FunctionName.valueOf(function.name().name());
+                    yield (vars, interpreter) -> name.apply(argument.eval(vars, interpreter));
+                }
+            };
+        } else if (expression instanceof BinaryExpressionNode binary && isArithmetic(binary.operation())) {
+            return arithmetic(binary.operation(), binary.left(), binary.right());
+        } else if (expression instanceof StringNode) {
+            throw new UnsupportedOperationException("A string where a number is needed");
+        }
+        var condition = condition(expression);
+        return (vars, interpreter) -> condition.test(vars, interpreter) ? 1 : 0;
+    }
+
+    private static boolean isArithmetic(BinaryOperation operation) {
+        return switch (operation) {
+            case ADD, SUBTRACT, MULTIPLY, DIVIDE -> true;
+            default -> false;
+        };
+    }
+
+    private Expression arithmetic(BinaryOperation operation, ExpressionTree left, ExpressionTree right) {
+        if (left instanceof VarNode l && right instanceof VarNode r) {
+            var a = symbols.slot(l.name());
+            var b = symbols.slot(r.name());
+            return switch (operation) {
+                case ADD -> (vars, interpreter) -> vars[a] + vars[b];
+                case SUBTRACT -> (vars, interpreter) -> vars[a] - vars[b];
+                case MULTIPLY -> (vars, interpreter) -> vars[a] * vars[b];
+                default -> (vars, interpreter) -> vars[a] / vars[b];
+            };
+        }
+        if (left instanceof VarNode l && right instanceof NumberNode r) {
+            var a = symbols.slot(l.name());
+            var b = r.value();
+            return switch (operation) {
+                case ADD -> (vars, interpreter) -> vars[a] + b;
+                case SUBTRACT -> (vars, interpreter) -> vars[a] - b;
+                case MULTIPLY -> (vars, interpreter) -> vars[a] * b;
+                default -> (vars, interpreter) -> vars[a] / b;
+            };
+        }
+        var a = number(left);
+        var b = number(right);
+        return switch (operation) {
+            case ADD -> (vars, interpreter) -> a.eval(vars, interpreter) + b.eval(vars, interpreter);
+            case SUBTRACT -> (vars, interpreter) -> a.eval(vars, interpreter) - b.eval(vars, interpreter);
+            case MULTIPLY -> (vars, interpreter) -> a.eval(vars, interpreter) * b.eval(vars, interpreter);
+            default -> (vars, interpreter) -> a.eval(vars, interpreter) / b.eval(vars, interpreter);
+        };
+    }
+
+    // An expression used as a truth value: non-zero is true. AND and OR evaluate both operands, as the
+    // instructions do.
+    private Condition condition(ExpressionTree expression) {
+        if (expression instanceof BinaryExpressionNode binary) {
+            switch (binary.operation()) {
+                case AND -> {
+                    var a = condition(binary.left());
+                    var b = condition(binary.right());
+                    return (vars, interpreter) -> a.test(vars, interpreter) & b.test(vars, interpreter);
+                }
+                case OR -> {
+                    var a = condition(binary.left());
+                    var b = condition(binary.right());
+                    return (vars, interpreter) -> a.test(vars, interpreter) | b.test(vars, interpreter);
+                }
+                case EQUALS, DIAMOND, LT, GT, LTE, GTE -> {
+                    return compare(comparison(binary.operation()), binary.left(), binary.right());
+                }
+                default -> {
+                }
+            }
+        } else if (expression instanceof UnaryExpressionNode unary && unary.operation() == UnaryOperation.NOT) {
+            var operand = condition(unary.operand());
+            return (vars, interpreter) -> !operand.test(vars, interpreter);
+        } else if (expression instanceof NumberNode number) {
+            var value = number.value() != 0;
+            return (vars, interpreter) -> value;
+        }
+        var value = number(expression);
+        return (vars, interpreter) -> value.eval(vars, interpreter) != 0;
+    }
+
+    private Condition compare(Comparison comparison, ExpressionTree left, ExpressionTree right) {
+        if (left instanceof StringNode l && right instanceof StringNode r) {
+            var result = comparison.test(l.value().compareTo(r.value()), 0);
+            return (vars, interpreter) -> result;
+        }
+        if (left instanceof VarNode l && right instanceof NumberNode r) {
+            var a = symbols.slot(l.name());
+            var b = r.value();
+            return switch (comparison) {
+                case EQUALS -> (vars, interpreter) -> vars[a] == b;
+                case NOT_EQUALS -> (vars, interpreter) -> vars[a] != b;
+                case LESS -> (vars, interpreter) -> vars[a] < b;
+                case GREATER -> (vars, interpreter) -> vars[a] > b;
+                case LESS_EQUAL -> (vars, interpreter) -> vars[a] <= b;
+                case GREATER_EQUAL -> (vars, interpreter) -> vars[a] >= b;
+            };
+        }
+        var a = number(left);
+        var b = number(right);
+        return switch (comparison) {
+            case EQUALS -> (vars, interpreter) -> a.eval(vars, interpreter) == b.eval(vars, interpreter);
+            case NOT_EQUALS -> (vars, interpreter) -> a.eval(vars, interpreter) != b.eval(vars, interpreter);
+            case LESS -> (vars, interpreter) -> a.eval(vars, interpreter) < b.eval(vars, interpreter);
+            case GREATER -> (vars, interpreter) -> a.eval(vars, interpreter) > b.eval(vars, interpreter);
+            case LESS_EQUAL -> (vars, interpreter) -> a.eval(vars, interpreter) <= b.eval(vars, interpreter);
+            case GREATER_EQUAL -> (vars, interpreter) -> a.eval(vars, interpreter) >= b.eval(vars, interpreter);
+        };
+    }
+
+    private static Comparison comparison(BinaryOperation operation) {
+        return switch (operation) {
+            case EQUALS -> Comparison.EQUALS;
+            case DIAMOND -> Comparison.NOT_EQUALS;
+            case LT -> Comparison.LESS;
+            case GT -> Comparison.GREATER;
+            case LTE -> Comparison.LESS_EQUAL;
+            case GTE -> Comparison.GREATER_EQUAL;
+            default -> throw new IllegalArgumentException(operation.name());
+        };
+    }
+
+}
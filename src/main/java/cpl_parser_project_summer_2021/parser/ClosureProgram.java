@@ -0,0 +1,59 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.List;
+
+// A program compiled by ClosureCompiler into a tree of lambdas per statement. Statements are run in
+// order by index; each returns the index of the statement to run next, so GOTO, GOSUB and FOR/NEXT are
+// just other return values. The GOSUB return stack, the FOR loop stack and run-time line lookups are the
+// Interpreter's, PRINT writes to its Output and RND draws from its RandomSource; its operand stack is
+// never used.
+public final class ClosureProgram implements Executable {
+
+    // Returned by END and STOP
+    static final int STOP = Integer.MAX_VALUE;
+
+    // A numeric expression, reading variables by slot; the Interpreter is there for RND
+    interface Expression {
+        double eval(double[] vars, Interpreter interpreter);
+    }
+
+    // A condition, for IF and the operands of AND, OR and NOT
+    interface Condition {
+        boolean test(double[] vars, Interpreter interpreter);
+    }
+
+    interface Statement {
+        // Runs the statement at index pc and returns the index of the next one
+        int run(double[] vars, Interpreter interpreter, int pc);
+    }
+
+    private final Statement[] code;
+    private final List<String> variables;
+    private final LineTable lines;
+
+    ClosureProgram(Statement[] code, List<String> variables, LineTable lines) {
+        this.code = code;
+        this.variables = variables;
+        this.lines = lines;
+    }
+
+    // Variable names by slot
+    public List<String> variables() {
+        return variables;
+    }
+
+    @Override
+    public Variables execute(Output output, RandomSource random) {
+        var vars = new Variables(variables);
+        var interpreter = new Interpreter(new OperandStack(1), vars, lines, output, random);
+        var numbers = vars.numbers;
+        var pc = 0;
+        try {
+            while (pc < code.length) pc = code[pc].run(numbers, interpreter, pc);
+        } finally {
+            output.flush();
+        }
+        return vars;
+    }
+
+}
@@ -0,0 +1,195 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static cpl_parser_project_summer_2021.parser.ParseTree.*;
+
+// Rewrites a parse tree before it is compiled:
+//  - operators and functions whose operands are all constants become a NumberNode (or stay a string)
+//  - x * 1, 1 * x, x / 1, x - 0 and - - x become x when x is certainly a number
+//  - IF on a constant condition becomes a GOTO or disappears, GOTO/GOSUB on a constant expression
+//    becomes a jump the linker can resolve
+// RND is never folded. Only rewrites that give the same result in IEEE arithmetic are made: x + 0 is kept
+// because -0 + 0 is 0, and x - 0 needs a +0. The identities are not applied to variables, which may hold
+// a string that has to fail at run time. Every rewrite is listed in report().
+public final class ConstantFolder {
+
+    private final List<String> report = new ArrayList<>();
+    private int line;
+
+    public LinesNode fold(LinesNode tree) {
+        var lines = new ArrayList<LineNode>(tree.lines().size());
+        for (var line : tree.lines()) {
+            lines.add(fold(line));
+        }
+        return new LinesNode(lines);
+    }
+
+    public LineNode fold(LineNode line) {
+        this.line = (int) line.number().value();
+        var statements = new ArrayList<StatementTree>(line.statements().size());
+        for (var statement : line.statements()) {
+            statements.add(fold(statement));
+        }
+        return new LineNode(line.number(), statements);
+    }
+
+    // One entry per rewrite, e.g. "20: (2.0 * 3.0) -> 6.0"
+    public List<String> report() {
+        return List.copyOf(report);
+    }
+
+    private StatementTree fold(StatementTree statement) {
+        if (statement instanceof LetNode let) {
+            return new LetNode(let.name(), fold(let.value()));
+        } else if (statement instanceof PrintNode print) {
+            var values = new ArrayList<ExpressionTree>(print.values().size());
+            for (var value : print.values()) {
+                values.add(fold(value));
+            }
+            return new PrintNode(values);
+        } else if (statement instanceof ForNode loop) {
+            return new ForNode(loop.var(), fold(loop.from()), fold(loop.to()), loop.step());
+        } else if (statement instanceof GotoNode jump) {
+            return new GotoNode(fold(jump.destination()));
+        } else if (statement instanceof GosubNode call) {
+            return new GosubNode(fold(call.destination()));
+        } else if (statement instanceof IfNode branch) {
+            var condition = fold(branch.condition());
+            if (!(condition instanceof NumberNode number)) return new IfNode(condition, branch.destination());
+            var destination = (int) branch.destination().value();
+            if (number.value() != 0) {
+                note("IF " + describe(condition) + " THEN " + destination, "GOTO " + destination);
+                return new GotoNode(branch.destination());
+            }
+            note("IF " + describe(condition) + " THEN " + destination, "(removed)");
+            return new BlankStatementNode();
+        }
+        return statement;
+    }
+
+    private ExpressionTree fold(ExpressionTree expression) {
+        if (expression instanceof BinaryExpressionNode binary) {
+            var left = fold(binary.left());
+            var right = fold(binary.right());
+            var folded = fold(binary.operation(), left, right);
+            if (folded != null) {
+                note(describe(binary), describe(folded));
+                return folded;
+            }
+            return left == binary.left() && right == binary.right() ? binary : new BinaryExpressionNode(binary.operation(), left, right);
+        } else if (expression instanceof UnaryExpressionNode unary) {
+            var operand = fold(unary.operand());
+            ExpressionTree folded = null;
+            if (operand instanceof NumberNode number) {
+                folded = new NumberNode(unary.operation() == UnaryOperation.NEGATE ? -number.value() : truth(number.value() == 0));
+            } else if (unary.operation() == UnaryOperation.NEGATE && operand instanceof UnaryExpressionNode inner
+                    && inner.operation() == UnaryOperation.NEGATE && numeric(inner.operand())) {
+                folded = inner.operand();
+            }
+            if (folded != null) {
+                note(describe(unary), describe(folded));
+                return folded;
+            }
+            return operand == unary.operand() ? unary : new UnaryExpressionNode(unary.operation(), operand);
+        } else if (expression instanceof FunctionExpressionNode function) {
+            var argument = fold(function.argument());
+            if (argument instanceof NumberNode number && function.name() != FunctionName.RND) {
+                var folded = new NumberNode(Instruction.FunctionName.valueOf(function.name().name()).apply(number.value()));
+                note(describe(function), describe(folded));
+                return folded;
+            }
+            return argument == function.argument() ? function : new FunctionExpressionNode(function.name(), argument);
+        }
+        return expression;
+    }
+
+    // The folded or simplified form of left operation right, or null if it has to be computed at run time
+    private static ExpressionTree fold(BinaryOperation operation, ExpressionTree left, ExpressionTree right) {
+        if (left instanceof NumberNode l && right instanceof NumberNode r) {
+            var a = l.value();
+            var b = r.value();
+            return new NumberNode(switch (operation) {
+                case ADD -> a + b;
+                case SUBTRACT -> a - b;
+                case MULTIPLY -> a * b;
+                case DIVIDE -> a / b;
+                case EQUALS -> truth(a == b);
+                case DIAMOND -> truth(a != b);
+                case LT -> truth(a < b);
+                case GT -> truth(a > b);
+                case LTE -> truth(a <= b);
+                case GTE -> truth(a >= b);
+                case AND -> truth(a != 0 && b != 0);
+                case OR -> truth(a != 0 || b != 0);
+            });
+        }
+        if (left instanceof StringNode l && right instanceof StringNode r) {
+            var order = l.value().compareTo(r.value());
+            return switch (operation) {
+                case EQUALS -> new NumberNode(truth(order == 0));
+                case DIAMOND -> new NumberNode(truth(order != 0));
+                case LT -> new NumberNode(truth(order < 0));
+                case GT -> new NumberNode(truth(order > 0));
+                case LTE -> new NumberNode(truth(order <= 0));
+                case GTE -> new NumberNode(truth(order >= 0));
+                default -> null;
+            };
+        }
+        return switch (operation) {
+            case SUBTRACT -> numeric(left) && is(right, 0) ? left : null;
+            case MULTIPLY -> numeric(left) && is(right, 1) ? left : numeric(right) && is(left, 1) ? right : null;
+            case DIVIDE -> numeric(left) && is(right, 1) ? left : null;
+            default -> null;
+        };
+    }
+
+    // Compares bit patterns, so that -0 is not taken for 0
+    private static boolean is(ExpressionTree expression, double value) {
+        return expression instanceof NumberNode number
+                && Double.doubleToRawLongBits(number.value()) == Double.doubleToRawLongBits(value);
+    }
+
+    // Whether expression can only evaluate to a number: operators and functions either give one or fail
+    private static boolean numeric(ExpressionTree expression) {
+        return expression instanceof NumberNode || expression instanceof BinaryExpressionNode
+                || expression instanceof UnaryExpressionNode || expression instanceof FunctionExpressionNode;
+    }
+
+    private static double truth(boolean value) {
+        return value ? 1 : 0;
+    }
+
+    private void note(String before, String after) {
+        report.add(line + ": " + before + " -> " + after);
+    }
+
+    // BASIC-like text of an expression, fully parenthesized, for the report
+    static String describe(ExpressionTree expression) {
+        if (expression instanceof NumberNode number) return String.valueOf(number.value());
+        if (expression instanceof StringNode string) return '"' + string.value() + '"';
+        if (expression instanceof VarNode var) return var.name();
+        if (expression instanceof FunctionExpressionNode function) return function.name() + "(" + describe(function.argument()) + ")";
+        if (expression instanceof UnaryExpressionNode unary) {
+            return (unary.operation() == UnaryOperation.NEGATE ? "-" : "NOT ") + describe(unary.operand());
+        }
+        var binary = (BinaryExpressionNode) expression;
+        var operator = switch (binary.operation()) {
+            case OR -> "OR";
+            case AND -> "AND";
+            case EQUALS -> "=";
+            case DIAMOND -> "<>";
+            case LT -> "<";
+            case GT -> ">";
+            case LTE -> "<=";
+            case GTE -> ">=";
+            case ADD -> "+";
+            case SUBTRACT -> "-";
+            case MULTIPLY -> "*";
+            case DIVIDE -> "/";
+        };
+        return "(" + describe(binary.left()) + " " + operator + " " + describe(binary.right()) + ")";
+    }
+
+}
@@ -0,0 +1,22 @@
+package cpl_parser_project_summer_2021.parser;
+
+// A compiled program ready to run: Program (record interpreter), Bytecode, ClosureProgram or JitProgram.
+// Immutable; each execute() keeps its state to itself, so one instance can run on many threads at once
+// (see Session).
+public interface Executable {
+
+    // Runs the program from the start, printing to output and drawing RND from random, and returns its
+    // variables when it stops. output is flushed when the program stops, normally or not.
+    Variables execute(Output output, RandomSource random);
+
+    // With a randomly seeded RandomSource
+    default Variables execute(Output output) {
+        return execute(output, new RandomSource());
+    }
+
+    // Printing to System.out
+    default Variables execute() {
+        return execute(Output.standard());
+    }
+
+}
@@ -0,0 +1,104 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import static cpl_parser_project_summer_2021.parser.ParseTree.*;
+
+// Keeps a parsed program indexed by BASIC line number so that an edit only re-lexes and re-parses the
+// lines it touches. Lines are kept in line-number order; a later line with the same number replaces an
+// earlier one, like typing it in at a BASIC prompt. Line numbers must be whole numbers that fit an int.
+public class IncrementalParser {
+
+    private final TreeMap<Integer, Entry> lines = new TreeMap<>();
+    private LinesNode tree;
+
+    // Instructions are compiled on demand and dropped whenever the line is replaced
+    private static final class Entry {
+        final LineNode line;
+        List<Instruction> instructions;
+
+        Entry(LineNode line) {
+            this.line = line;
+        }
+    }
+
+    public IncrementalParser() {
+    }
+
+    public IncrementalParser(Lexer lexer) throws IOException, LexerException, ParserException {
+        for (var line : new Parser(lexer).parseLines().lines()) {
+            lines.put(lineNumber(line), new Entry(line));
+        }
+    }
+
+    // Replaces the line numbered lineNumber with text, which may hold any number of lines (none deletes it,
+    // a different number moves it). On a lexer or parser error the program is left unchanged.
+    public LinesNode edit(int lineNumber, String text) throws IOException, LexerException, ParserException {
+        var parsed = parse(text);
+        lines.remove(lineNumber);
+        for (var line : parsed) {
+            lines.put(lineNumber(line), new Entry(line));
+        }
+        tree = null;
+        return tree();
+    }
+
+    // Adds or replaces the lines in text, keyed by their own line numbers
+    public LinesNode edit(String text) throws IOException, LexerException, ParserException {
+        for (var line : parse(text)) {
+            lines.put(lineNumber(line), new Entry(line));
+        }
+        tree = null;
+        return tree();
+    }
+
+    public LinesNode delete(int lineNumber) {
+        if (lines.remove(lineNumber) != null) tree = null;
+        return tree();
+    }
+
+    public LinesNode tree() {
+        if (tree == null) {
+            var list = new ArrayList<LineNode>(lines.size());
+            for (var entry : lines.values()) {
+                list.add(entry.line);
+            }
+            tree = new LinesNode(list);
+        }
+        return tree;
+    }
+
+    // Same instructions as tree().compile(), reusing the code of every line that has not been edited
+    public List<Instruction> compile() {
+        var instructions = new ArrayList<Instruction>();
+        for (var entry : lines.values()) {
+            if (entry.instructions == null) entry.instructions = entry.line.compile();
+            instructions.addAll(entry.instructions);
+        }
+        return instructions;
+    }
+
+    private List<LineNode> parse(String text) throws IOException, LexerException, ParserException {
+        if (text.isBlank()) return List.of();
+        if (!text.endsWith("\n") && !text.endsWith("\r")) text += "\n";
+        var lexer = new Lexer(ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1)));
+        var parsed = new Parser(lexer).parseLines().lines();
+        for (var line : parsed) lineNumber(line);
+        return parsed;
+    }
+
+    // Rejects numbers such as 10.5 or 1E10 rather than truncating them onto another line's key
+    private static int lineNumber(LineNode line) throws ParserException {
+        var number = line.number().value();
+        if (number != Math.rint(number) || number < 0 || number > Integer.MAX_VALUE) {
+            throw new ParserException("Line number " + number + " is not a whole number from 0 to " + Integer.MAX_VALUE);
+        }
+        return (int) number;
+    }
+
+}
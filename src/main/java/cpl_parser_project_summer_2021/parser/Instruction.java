@@ -6,76 +6,113 @@ public interface Instruction {
 
     //Addition, subtraction, multiplication, division, negation, assignment, print , push constant, push var value, function expression
 
-    boolean run(Stack<Object> stack, HashMap<String, Object> vars);
+    boolean run(OperandStack stack, Variables vars);
 
-    public static void execute(List<Instruction> instructions) {
-        var stack = new Stack<Object>();
-        var vars = new HashMap<String, Object>();
+    // Links the instructions (see Program) and runs them, returning the final variables. To run a program
+    // more than once, or on several threads, link it once and run it in Sessions.
+    public static Variables execute(List<Instruction> instructions) {
+        return Program.link(instructions).execute();
+    }
+
+    // Compiles and runs each line as soon as it is parsed, e.g. from Parser.lines(), so a straight-line
+    // program starts before its source has been read. A line's parse tree is dropped once it is compiled;
+    // only its instructions are kept, since a later GOTO, GOSUB or IF may jump back to it. The first line
+    // with a jump needs the whole program: the rest is compiled as it is read, everything is linked and
+    // execution continues there. Memory is that of the compiled program, never of the whole parse tree.
+    public static Variables execute(Iterator<ParseTree.LineNode> lines) {
+        return execute(lines, Output.standard());
+    }
+
+    public static Variables execute(Iterator<ParseTree.LineNode> lines, Output output) {
+        return execute(lines, output, new RandomSource());
+    }
+
+    public static Variables execute(Iterator<ParseTree.LineNode> lines, Output output, RandomSource random) {
+        var vars = new Variables();
+        // runs the Effects of lines that have no jumps, so it needs no line numbers
+        var interpreter = new Interpreter(new OperandStack(), vars, new LineTable(new int[0], new int[0]), output, random);
+        // every line so far, Line markers included, which is all Program.link needs. Instructions are
+        // immutable records, so equal ones (every Addition, every LoadVar of one slot) share an instance.
+        var compiled = new ArrayList<Instruction>();
+        var shared = new HashMap<Instruction, Instruction>();
+        try {
+            while (lines.hasNext()) {
+                var line = lines.next();
+                var number = (int) line.number().value();
+                var code = Program.resolve(line.compile(), vars);
+                for (var instruction : code) compiled.add(shared.computeIfAbsent(instruction, i -> i));
+                if (code.stream().anyMatch(instruction -> instruction instanceof Branch && !(instruction instanceof Effect))) {
+                    while (lines.hasNext()) {
+                        for (var instruction : lines.next().compile()) compiled.add(shared.computeIfAbsent(instruction, i -> i));
+                    }
+                    shared = null;
+                    var program = Program.link(compiled, vars, true);
+                    compiled = null;
+                    program.execute(vars, program.lines().index(number), output, random);
+                    break;
+                }
+                if (!run(code, interpreter)) break;
+            }
+        } finally {
+            output.flush();
+        }
+        return vars;
+    }
+
+    static boolean run(List<Instruction> instructions, Interpreter interpreter) {
         for (var instruction: instructions){
-            if (!instruction.run(stack, vars)) break;
+            if (instruction instanceof Effect effect) effect.perform(interpreter);
+            else if (!instruction.run(interpreter.stack, interpreter.vars)) return false;
         }
+        return true;
     }
 
     public record Addition() implements Instruction{
-        public boolean run(Stack<Object> stack, HashMap<String, Object> vars) {
-            var rhs = (Double)stack.pop();
-            var lhs = (Double)stack.pop();
-            stack.push(lhs + rhs);
+        public boolean run(OperandStack stack, Variables vars) {
+            var rhs = stack.popNumber();
+            var lhs = stack.popNumber();
+            stack.pushNumber(lhs + rhs);
             return true;
         }
     }
 
-    public record Subtraction() implements Instruction {
-        public boolean run(Stack<Object> stack, HashMap<String, Object> vars) {
-            var rhs = (Double) stack.pop();
-            var lhs = (Double) stack.pop();
-            stack.push(lhs - rhs);
+    public record Subtraction() implements Instruction{
+        public boolean run(OperandStack stack, Variables vars) {
+            var rhs = stack.popNumber();
+            var lhs = stack.popNumber();
+            stack.pushNumber(lhs - rhs);
             return true;
         }
     }
 
     public record Multiplication() implements Instruction{
-        public boolean run(Stack<Object> stack, HashMap<String, Object> vars) {
-            var rhs = (Double)stack.pop();
-            var lhs = (Double)stack.pop();
-            stack.push(lhs * rhs);
+        public boolean run(OperandStack stack, Variables vars) {
+            var rhs = stack.popNumber();
+            var lhs = stack.popNumber();
+            stack.pushNumber(lhs * rhs);
             return true;
         }
     }
 
     public record Division() implements Instruction{
-        public boolean run(Stack<Object> stack, HashMap<String, Object> vars) {
-            var rhs = (Double) stack.pop();
-            var lhs = (Double) stack.pop();
-            stack.push(lhs / rhs);
+        public boolean run(OperandStack stack, Variables vars) {
+            var rhs = stack.popNumber();
+            var lhs = stack.popNumber();
+            stack.pushNumber(lhs / rhs);
             return true;
         }
     }
 
     public record Negation() implements Instruction{
-        public boolean run(Stack<Object> stack, HashMap<String, Object> vars) {
-            var operand = (Double)stack.pop();
-            stack.push(-operand);
+        public boolean run(OperandStack stack, Variables vars) {
+            stack.pushNumber(-stack.popNumber());
             return true;
         }
     }
 
     public record Function(FunctionName name) implements Instruction{
-        public boolean run(Stack<Object> stack, HashMap<String, Object> vars) {
-            var argument = (Double)stack.pop();
-            stack.push(
-            switch(name){
-                case ABS -> Math.abs(argument);
-                case ATN -> Math.atan(argument);
-                case COS -> Math.cos(argument);
-                case EXP -> Math.exp(argument);
-                case INT -> Math.rint(argument);
-                case LOG -> Math.log(argument);
-                case RND -> new Random().nextInt((int)(double)argument);
-                case SIN -> Math.sin(argument);
-                case SQR -> Math.sqrt(argument);
-                case TAN -> Math.tan(argument);
-            });
+        public boolean run(OperandStack stack, Variables vars) {
+            stack.pushNumber(name.apply(stack.popNumber()));
             return true;
         }
     }
@@ -91,52 +128,362 @@ public interface Instruction {
         RND,
         SIN,
         SQR,
-        TAN
+        TAN;
+
+        public double apply(double argument) {
+            return switch (this) {
+                case ABS -> Math.abs(argument);
+                case ATN -> Math.atan(argument);
+                case COS -> Math.cos(argument);
+                case EXP -> Math.exp(argument);
+                case INT -> Math.rint(argument);
+                case LOG -> Math.log(argument);
+                case RND -> throw new IllegalStateException("RND needs the run's RandomSource");
+                case SIN -> Math.sin(argument);
+                case SQR -> Math.sqrt(argument);
+                case TAN -> Math.tan(argument);
+            };
+        }
 
     }
 
     // pop value and store somewhere with name of variable
     public record SetVar(String name) implements Instruction{
-        public boolean run(Stack<Object> stack, HashMap<String, Object> vars) {
-            vars.put(name, stack.pop());
+        public boolean run(OperandStack stack, Variables vars) {
+            vars.store(vars.slot(name), stack);
             return true;
         }
     }
 
     // find what was stored and push to stack
     public record GetVar(String name) implements Instruction{
-        public boolean run(Stack<Object> stack, HashMap<String, Object> vars) {
-            stack.push(vars.get(name));
+        public boolean run(OperandStack stack, Variables vars) {
+            vars.load(vars.slot(name), stack);
             return true;
         }
     }
 
-    public record Print() implements Instruction{
-        public boolean run(Stack<Object> stack, HashMap<String, Object> vars) {
-            System.out.print(stack.pop() + " ");
+    // SetVar after slot resolution; the name is only kept for listings
+    public record StoreVar(int slot, String name) implements Instruction{
+        public boolean run(OperandStack stack, Variables vars) {
+            vars.store(slot, stack);
             return true;
         }
     }
 
-    public record PrintNewLine() implements Instruction{
-        public boolean run(Stack<Object> stack, HashMap<String, Object> vars) {
-            System.out.println();
+    // GetVar after slot resolution
+    public record LoadVar(int slot, String name) implements Instruction{
+        public boolean run(OperandStack stack, Variables vars) {
+            vars.load(slot, stack);
             return true;
         }
     }
 
+    public record Print() implements Effect{
+        public void perform(Interpreter interpreter) {
+            var stack = interpreter.stack;
+            if (stack.isNumber()) {
+                interpreter.output.print(stack.popNumber());
+            } else {
+                interpreter.output.print(String.valueOf(stack.popReference()));
+            }
+        }
+    }
+
+    public record PrintNewLine() implements Effect{
+        public void perform(Interpreter interpreter) {
+            interpreter.output.newLine();
+        }
+    }
+
+    // RND, drawing from the run's RandomSource; Program.link puts it in place of Function(RND)
+    public record RandomNumber() implements Effect{
+        public void perform(Interpreter interpreter) {
+            var stack = interpreter.stack;
+            stack.pushNumber(interpreter.random.next(stack.popNumber()));
+        }
+    }
+
     public record PushConstant(Object constant) implements Instruction{
-        public boolean run(Stack<Object> stack, HashMap<String, Object> vars) {
-            stack.push(constant);
+        public boolean run(OperandStack stack, Variables vars) {
+            if (constant instanceof Double number) {
+                stack.pushNumber(number);
+            } else {
+                stack.pushReference(constant);
+            }
             return true;
         }
     }
 
     public record End() implements Instruction{
-        public boolean run(Stack<Object> stack, HashMap<String, Object> vars) {
+        public boolean run(OperandStack stack, Variables vars) {
             return false;
         }
     }
 
+    // Comparisons and logic push 1 for true and 0 for false; any non-zero number counts as true
+    public record Compare(Comparison comparison) implements Instruction{
+        public boolean run(OperandStack stack, Variables vars) {
+            if (stack.isNumber()) {
+                var rhs = stack.popNumber();
+                var lhs = stack.popNumber();
+                stack.pushNumber(truth(comparison.test(lhs, rhs)));
+            } else {
+                var rhs = (String) stack.popReference();
+                if (!(stack.popReference() instanceof String lhs)) throw new ClassCastException("Expected a string but found a number");
+                stack.pushNumber(truth(comparison.test(lhs.compareTo(rhs), 0)));
+            }
+            return true;
+        }
+    }
+
+    public enum Comparison {
+
+        EQUALS,
+        NOT_EQUALS,
+        LESS,
+        GREATER,
+        LESS_EQUAL,
+        GREATER_EQUAL;
+
+        public boolean test(double lhs, double rhs) {
+            return switch (this) {
+                case EQUALS -> lhs == rhs;
+                case NOT_EQUALS -> lhs != rhs;
+                case LESS -> lhs < rhs;
+                case GREATER -> lhs > rhs;
+                case LESS_EQUAL -> lhs <= rhs;
+                case GREATER_EQUAL -> lhs >= rhs;
+            };
+        }
+
+    }
+
+    public record And() implements Instruction{
+        public boolean run(OperandStack stack, Variables vars) {
+            var rhs = stack.popNumber();
+            var lhs = stack.popNumber();
+            stack.pushNumber(truth(lhs != 0 && rhs != 0));
+            return true;
+        }
+    }
+
+    public record Or() implements Instruction{
+        public boolean run(OperandStack stack, Variables vars) {
+            var rhs = stack.popNumber();
+            var lhs = stack.popNumber();
+            stack.pushNumber(truth(lhs != 0 || rhs != 0));
+            return true;
+        }
+    }
+
+    public record Not() implements Instruction{
+        public boolean run(OperandStack stack, Variables vars) {
+            stack.pushNumber(truth(stack.popNumber() == 0));
+            return true;
+        }
+    }
+
+    private static double truth(boolean value) {
+        return value ? 1 : 0;
+    }
+
+    // Marks the start of a BASIC line; Program.link turns these into its LineTable and drops them
+    public record Line(int number) implements Instruction{
+        public boolean run(OperandStack stack, Variables vars) {
+            return true;
+        }
+    }
+
+    // Control flow: picks the index of the next instruction, given pc, the index just after this one.
+    // Only an Interpreter (or Bytecode) running linked code has a program counter to move.
+    public interface Branch extends Instruction {
+
+        int next(int pc, Interpreter interpreter);
+
+        default boolean run(OperandStack stack, Variables vars) {
+            throw new IllegalStateException(this + " needs a program counter");
+        }
+
+    }
+
+    // Uses what the run owns besides its stack and variables: the Output or the RandomSource. It goes
+    // through the Interpreter like a Branch, so the dispatch loop has no extra check, and always continues
+    // with the next instruction.
+    public interface Effect extends Branch {
+
+        void perform(Interpreter interpreter);
+
+        default int next(int pc, Interpreter interpreter) {
+            perform(interpreter);
+            return pc;
+        }
+
+    }
+
+    // GOTO, GOSUB and IF ... THEN to a constant line, as compiled; Program.link replaces them with Jump,
+    // Call and JumpIf on an instruction index
+    public record Goto(int line) implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            throw new IllegalStateException("GOTO " + line + " has not been linked");
+        }
+    }
+
+    public record Gosub(int line) implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            throw new IllegalStateException("GOSUB " + line + " has not been linked");
+        }
+    }
+
+    public record IfGoto(int line) implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            throw new IllegalStateException("IF ... THEN " + line + " has not been linked");
+        }
+    }
+
+    public record Jump(int target) implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            return target;
+        }
+    }
+
+    // pop condition and jump when it is true
+    public record JumpIf(int target) implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            return interpreter.stack.popNumber() != 0 ? target : pc;
+        }
+    }
+
+    public record Call(int target) implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            interpreter.pushReturn(pc);
+            return target;
+        }
+    }
+
+    public record Return() implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            return interpreter.popReturn();
+        }
+    }
+
+    // GOTO and GOSUB to a line number computed at run time, looked up in the program's LineTable
+    public record ComputedGoto() implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            return interpreter.target((int) interpreter.stack.popNumber());
+        }
+    }
+
+    public record ComputedGosub() implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            var target = interpreter.target((int) interpreter.stack.popNumber());
+            interpreter.pushReturn(pc);
+            return target;
+        }
+    }
+
+    // FOR and NEXT as compiled; Program.link replaces them with ForLoop and NextLoop
+    public record For(String name, double step) implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            throw new IllegalStateException("FOR " + name + " has not been linked");
+        }
+    }
+
+    public record Next(String name) implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            throw new IllegalStateException("NEXT " + name + " has not been linked");
+        }
+    }
+
+    // pop limit and initial value, set the counter and open a loop frame, or go to exit (just past the
+    // matching NEXT) if the loop would not run at all
+    public record ForLoop(int slot, String name, double step, int exit) implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            var limit = interpreter.stack.popNumber();
+            var initial = interpreter.stack.popNumber();
+            interpreter.vars.numbers[slot] = initial;
+            interpreter.vars.references[slot] = null;
+            if (LoopStack.finished(initial, limit, step)) return exit;
+            interpreter.loops.enter(slot, limit, step, pc);
+            return pc;
+        }
+    }
+
+    // step the counter, compare it with the limit and branch back to the body, all in one instruction
+    public record NextLoop(int slot, String name) implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            return interpreter.loops.next(slot, interpreter.vars.numbers, interpreter.vars.references, pc);
+        }
+    }
+
+    // Superinstructions made by Peephole: each replaces a common run of instructions with one dispatch
+
+    public enum Arithmetic {
+
+        ADD,
+        SUBTRACT,
+        MULTIPLY,
+        DIVIDE;
+
+        public double apply(double lhs, double rhs) {
+            return switch (this) {
+                case ADD -> lhs + rhs;
+                case SUBTRACT -> lhs - rhs;
+                case MULTIPLY -> lhs * rhs;
+                case DIVIDE -> lhs / rhs;
+            };
+        }
+
+    }
+
+    // PushConstant c; Addition (or another operation): top = top op c
+    public record OperateConstant(Arithmetic operation, double constant) implements Instruction{
+        public boolean run(OperandStack stack, Variables vars) {
+            stack.pushNumber(operation.apply(stack.popNumber(), constant));
+            return true;
+        }
+    }
+
+    // LoadVar v; Addition (or another operation): top = top op v
+    public record OperateVar(Arithmetic operation, int slot, String name) implements Instruction{
+        public boolean run(OperandStack stack, Variables vars) {
+            if (vars.references[slot] != null) throw new ClassCastException("Expected a number but found " + vars.references[slot]);
+            stack.pushNumber(operation.apply(stack.popNumber(), vars.numbers[slot]));
+            return true;
+        }
+    }
+
+    // LoadVar v; PushConstant c; Addition or Subtraction; StoreVar v: v = v + amount
+    public record IncrementVar(int slot, String name, double amount) implements Instruction{
+        public boolean run(OperandStack stack, Variables vars) {
+            if (vars.references[slot] != null) throw new ClassCastException("Expected a number but found " + vars.references[slot]);
+            vars.numbers[slot] += amount;
+            return true;
+        }
+    }
+
+    // LoadVar v; PushConstant c; Compare; IfGoto line, before linking
+    public record IfVarCompareGoto(int slot, String name, Comparison comparison, double constant, int line) implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            throw new IllegalStateException("IF ... THEN " + line + " has not been linked");
+        }
+    }
+
+    // jump when v compares true with the constant
+    public record JumpIfVarCompare(int slot, String name, Comparison comparison, double constant, int target) implements Branch{
+        public int next(int pc, Interpreter interpreter) {
+            var vars = interpreter.vars;
+            if (vars.references[slot] != null) throw new ClassCastException("Expected a number but found " + vars.references[slot]);
+            return comparison.test(vars.numbers[slot], constant) ? target : pc;
+        }
+    }
+
+    // Where Program.link points a jump to a line that does not exist, so the error is raised only if taken
+    public record Fail(String message) implements Instruction{
+        public boolean run(OperandStack stack, Variables vars) {
+            throw new IllegalStateException(message);
+        }
+    }
+
 
 }
@@ -0,0 +1,73 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.Arrays;
+
+// Runs linked instructions with a program counter. Ordinary instructions just run and fall through to
+// the next one; a Branch decides where to continue, using the GOSUB return stack, the FOR loop stack
+// and the LineTable, and an Effect uses the Output or the RandomSource.
+public final class Interpreter {
+
+    final OperandStack stack;
+    final Variables vars;
+    private final LineTable lines;
+    final Output output;
+    final RandomSource random;
+    final LoopStack loops = new LoopStack();
+    private int[] returns = new int[16];
+    private int depth;
+
+    Interpreter(OperandStack stack, Variables vars, LineTable lines, Output output, RandomSource random) {
+        this.stack = stack;
+        this.vars = vars;
+        this.lines = lines;
+        this.output = output;
+        this.random = random;
+    }
+
+    // branches[i] says whether code[i] is a Branch, sparing an interface type check on every step
+    void run(Instruction[] code, boolean[] branches, int pc) {
+        while (pc < code.length) {
+            var instruction = code[pc];
+            if (branches[pc++]) {
+                pc = ((Instruction.Branch) instruction).next(pc, this);
+            } else if (!instruction.run(stack, vars)) {
+                return;
+            }
+        }
+    }
+
+    // The same loop, reporting every step to profiler; kept apart so that the loop above has no check for it
+    void run(Instruction[] code, boolean[] branches, int pc, Profiler profiler) {
+        try {
+            while (pc < code.length) {
+                profiler.step(pc, returns, depth);
+                var instruction = code[pc];
+                if (branches[pc++]) {
+                    pc = ((Instruction.Branch) instruction).next(pc, this);
+                } else if (!instruction.run(stack, vars)) {
+                    return;
+                }
+            }
+        } finally {
+            profiler.stop();
+        }
+    }
+
+    void pushReturn(int pc) {
+        if (depth == returns.length) returns = Arrays.copyOf(returns, depth * 2);
+        returns[depth++] = pc;
+    }
+
+    int popReturn() {
+        if (depth == 0) throw new IllegalStateException("RETURN without GOSUB");
+        return returns[--depth];
+    }
+
+    // Instruction index of a line jumped to at run time
+    int target(int line) {
+        var target = lines.index(line);
+        if (target < 0) throw new IllegalStateException("Undefined line " + line);
+        return target;
+    }
+
+}
@@ -0,0 +1,798 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static cpl_parser_project_summer_2021.parser.Instruction.*;
+import static cpl_parser_project_summer_2021.parser.ParseTree.*;
+
+// Translates a linked Program into a hidden JVM class with a static method,
+// run(double[] vars, Output, RandomSource, LineTable), so
+// HotSpot compiles the BASIC program itself:
+//  - the code is one block method, or as many as it takes to keep each within the JVM's 64 KB limit;
+//    blocks are split at line starts and run loops calling the block that holds the next instruction
+//  - every variable is a double local, loaded when a block is entered and stored when it is left
+//  - arithmetic is dadd, dsub, dmul, ddiv and dneg; functions call java.lang.Math
+//  - GOTO, IF, FOR/NEXT and the fused compare-and-branch are JVM branches; GOSUB pushes a return site
+//    that RETURN dispatches on with a tableswitch; computed GOTO/GOSUB use a lookupswitch on line numbers
+//  - a jump to another block returns its instruction index to run, and a computed jump to a line in
+//    another block returns -1 - the line number, for run to look up
+// The JVM needs a static type for every value, so a program that stores a string in a variable or does
+// arithmetic on one is rejected with UnsupportedOperationException; so is one with a line too large for
+// a method.
+// FOR and NEXT are paired as written (each NEXT with the FOR it closes), where the interpreter matches
+// them at run time. The two only disagree for programs that jump into a loop body from outside it, so
+// those are rejected too.
+public final class JitCompiler {
+
+    private static final String CLASS_NAME = "cpl_parser_project_summer_2021/parser/CompiledBasic";
+    private static final String SUPPORT = "cpl_parser_project_summer_2021/parser/JitSupport";
+    private static final String RETURNS = SUPPORT + "$Returns";
+
+    private static final String OUTPUT = "cpl_parser_project_summer_2021/parser/Output";
+    private static final String RANDOM_SOURCE = "cpl_parser_project_summer_2021/parser/RandomSource";
+    private static final String LINE_TABLE = "cpl_parser_project_summer_2021/parser/LineTable";
+
+    private static final String BLOCK_DESCRIPTOR = "([DL" + OUTPUT + ";L" + RANDOM_SOURCE + ";L" + RETURNS + ";I)I";
+
+    // Local variable layout of each block(double[] state, Output, RandomSource, Returns, int entry), which
+    // returns the index of the instruction to run next. state holds the variables then the FOR limits, of
+    // which the block keeps the ones it uses in doubles from FIRST_DOUBLE; LINE starts as the index to
+    // enter at.
+    private static final int STATE = 0;
+    private static final int OUTPUT_SINK = 1;
+    private static final int RANDOM = 2;
+    private static final int RETURN_SITES = 3;
+    private static final int LINE = 4;
+    private static final int FIRST_DOUBLE = 5;
+
+    // Local variable layout of run(double[] vars, Output, RandomSource, LineTable)
+    private static final int RUN_VARS = 0;
+    private static final int RUN_OUTPUT = 1;
+    private static final int RUN_RANDOM = 2;
+    private static final int RUN_LINES = 3;
+    private static final int RUN_STATE = 4;
+    private static final int RUN_RETURNS = 5;
+    private static final int RUN_PC = 6;
+
+    private static final int DCONST_0 = 0x0E;
+    private static final int DCONST_1 = 0x0F;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int ILOAD = 0x15;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD = 0x19;
+    private static final int DALOAD = 0x31;
+    private static final int ISTORE = 0x36;
+    private static final int DSTORE = 0x39;
+    private static final int ASTORE = 0x3A;
+    private static final int DASTORE = 0x52;
+    private static final int DUP = 0x59;
+    private static final int DADD = 0x63;
+    private static final int ISUB = 0x64;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6B;
+    private static final int DDIV = 0x6F;
+    private static final int DNEG = 0x77;
+    private static final int D2I = 0x8E;
+    private static final int DCMPL = 0x97;
+    private static final int DCMPG = 0x98;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9A;
+    private static final int IFLT = 0x9B;
+    private static final int IFGE = 0x9C;
+    private static final int IFGT = 0x9D;
+    private static final int IFLE = 0x9E;
+    private static final int IF_ICMPGE = 0xA2;
+    private static final int GOTO = 0xA7;
+    private static final int IRETURN = 0xAC;
+    private static final int RETURN = 0xB1;
+    private static final int INVOKEVIRTUAL = 0xB6;
+    private static final int INVOKESPECIAL = 0xB7;
+    private static final int INVOKESTATIC = 0xB8;
+    private static final int NEW = 0xBB;
+    private static final int ATHROW = 0xBF;
+
+    private static final char NUMBER = 'D';
+    private static final char STRING = 'S';
+
+    private final Program program;
+    private final Instruction[] code;
+    private final int variables;
+    private final int exit;
+    private final int undefinedLine;
+    private final int returnDispatch;
+    private final int lineExit;
+    private final int blockExit;
+    private final HashMap<Integer, Integer> limits = new HashMap<>();  // FOR index -> state slot of its limit
+    private final HashMap<Integer, Integer> loopOfNext = new HashMap<>();  // NEXT index -> its FOR index
+    private final List<Integer> returnSites = new ArrayList<>();  // in instruction order
+    private boolean[] targets;
+    private int[] locals;  // state slot -> local in the block being emitted, or -1 if the block does not use it
+    private int[] used;  // state slots the block uses, by local
+    private ClassFileWriter writer;
+    private ClassFileWriter.Code out;
+    private int from;  // the block being emitted, as instruction indices from (inclusive) to (exclusive)
+    private int to;
+    private boolean returns;
+    private final StringBuilder types = new StringBuilder();
+    private int depth;
+    private int maxDepth;
+
+    private JitCompiler(Program program) {
+        this.program = program;
+        code = program.code().toArray(Instruction[]::new);
+        variables = program.variables().size();
+        exit = code.length;
+        undefinedLine = code.length + 1;
+        returnDispatch = code.length + 2;
+        lineExit = code.length + 3;
+        blockExit = code.length + 4;
+    }
+
+    public static JitProgram compile(LinesNode tree) {
+        return compile(Program.link(tree.compile()));
+    }
+
+    // The compiled program, or the program itself (to be interpreted) if it cannot be compiled
+    public static Executable compileOrInterpret(Program program) {
+        try {
+            return compile(program);
+        } catch (UnsupportedOperationException e) {
+            return program;
+        }
+    }
+
+    public static JitProgram compile(Program program) {
+        var bytes = new JitCompiler(program).generate();
+        try {
+            var lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            var run = lookup.findStatic(lookup.lookupClass(), "run",
+                    MethodType.methodType(void.class, double[].class, Output.class, RandomSource.class, LineTable.class));
+            return new JitProgram(run, program.variables(), program.lines());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Tries one block, then twice as many each time a method is too large, until the lines cannot be split
+    private byte[] generate() {
+        pairLoops();
+        rejectJumpsIntoLoops();
+        targets = targets();
+        var lines = Arrays.stream(program.lines().indices()).filter(index -> index > 0 && index < code.length).sorted().distinct().toArray();
+        var previous = 0;
+        for (var blocks = 1; ; blocks *= 2) {
+            var starts = split(lines, blocks);
+            try {
+                return generate(starts);
+            } catch (ClassFileWriter.MethodTooLargeException e) {
+                if (starts.length == previous) throw e;
+                previous = starts.length;
+            }
+        }
+    }
+
+    // Block start indices: 0, then the first line start at least code.length / blocks past the last one
+    private int[] split(int[] lines, int blocks) {
+        var starts = new ArrayList<Integer>();
+        starts.add(0);
+        var size = Math.max(1, code.length / blocks);
+        for (var line : lines) {
+            if (line - starts.get(starts.size() - 1) >= size) starts.add(line);
+        }
+        return starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private byte[] generate(int[] starts) {
+        writer = new ClassFileWriter(CLASS_NAME);
+        for (var block = 0; block < starts.length; block++) {
+            block(block, starts[block], block + 1 < starts.length ? starts[block + 1] : code.length);
+        }
+        run(starts);
+        return writer.toBytes(ClassFileWriter.ACC_FINAL | ClassFileWriter.ACC_SUPER, "java/lang/Object");
+    }
+
+    private void block(int block, int from, int to) {
+        this.from = from;
+        this.to = to;
+        out = writer.new Code(code.length + 5);
+        returns = false;
+        maxDepth = 0;
+        allocateLocals();
+        out.frameLocals(5 + used.length, frameLocals(), FIRST_DOUBLE + 2 * used.length);
+
+        // load every double up front so that all frames are the same
+        for (var slot : used) {
+            out.local(ALOAD, STATE);
+            out.pushInt(slot);
+            out.op(DALOAD);
+            out.local(DSTORE, variable(slot));
+        }
+        var entries = new ArrayList<Integer>();
+        for (var pc = from; pc < to; pc++) {
+            if (pc == from || targets[pc]) entries.add(pc);
+        }
+        var entryIndices = entries.stream().mapToInt(Integer::intValue).toArray();
+        out.local(ILOAD, LINE);
+        out.lookupSwitch(entryIndices, entryIndices, undefinedLine);
+
+        var reachable = false;
+        for (var pc = from; pc < to; pc++) {
+            out.bind(pc);
+            if (targets[pc] || !reachable) {
+                if (depth != 0) throw new UnsupportedOperationException("Jump into the middle of a statement");
+                out.frame();
+            }
+            reachable = emit(pc, code[pc]);
+        }
+        if (reachable) out.jump(GOTO, to);
+        if (out.referenced(lineExit)) {
+            // a computed jump to a line outside the block; LINE holds the line number
+            out.bind(lineExit);
+            out.frame();
+            out.local(ILOAD, LINE);
+            out.jump(IFLT, undefinedLine);
+            out.pushInt(-1);
+            out.local(ILOAD, LINE);
+            out.op(ISUB);
+            out.local(ISTORE, LINE);
+            out.jump(GOTO, blockExit);
+        }
+        out.bind(blockExit);
+        out.frame();
+        for (var slot : used) {
+            out.local(ALOAD, STATE);
+            out.pushInt(slot);
+            out.local(DLOAD, variable(slot));
+            out.op(DASTORE);
+        }
+        out.local(ILOAD, LINE);
+        out.op(IRETURN);
+        out.bind(undefinedLine);
+        out.frame();
+        out.local(ILOAD, LINE);
+        call(SUPPORT, "undefinedLine", "(I)Ljava/lang/RuntimeException;");
+        out.op(ATHROW);
+        if (returns) {
+            // every RETURN stores the popped site in LINE and jumps here; with no GOSUB, pop() has thrown
+            out.bind(returnDispatch);
+            out.frame();
+            if (returnSites.isEmpty()) {
+                out.jump(GOTO, undefinedLine);
+            } else {
+                out.local(ILOAD, LINE);
+                out.tableSwitch(0, returnSites.stream().mapToInt(Integer::intValue).toArray(), undefinedLine);
+            }
+        }
+        // jumps out of the block (to the exit among them) leave with the index to run next in LINE
+        for (var target = 0; target <= code.length; target++) {
+            if ((target < from || target >= to) && out.referenced(target)) {
+                out.bind(target);
+                out.frame();
+                out.pushInt(target);
+                out.local(ISTORE, LINE);
+                out.jump(GOTO, blockExit);
+            }
+        }
+
+        out.maxStack(Math.max(maxDepth, 4) + 2);
+        writer.method(ClassFileWriter.ACC_STATIC, "block" + block, BLOCK_DESCRIPTOR, out);
+    }
+
+    // Copies vars into the state array, calls blocks until one returns the exit and copies the variables back
+    private void run(int[] starts) {
+        var run = writer.new Code(3 + starts.length);
+        var loop = 0;
+        var done = 1;
+        var known = 2;
+        var items = new ByteArrayOutputStream();
+        objectItem(items, writer.classRef("[D"));
+        objectItem(items, writer.classRef(OUTPUT));
+        objectItem(items, writer.classRef(RANDOM_SOURCE));
+        objectItem(items, writer.classRef(LINE_TABLE));
+        objectItem(items, writer.classRef("[D"));
+        objectItem(items, writer.classRef(RETURNS));
+        items.write(ClassFileWriter.ITEM_INTEGER);
+        run.frameLocals(7, items.toByteArray(), 7);
+
+        run.local(ALOAD, RUN_VARS);
+        run.pushInt(variables + limits.size());
+        run.op(INVOKESTATIC, writer.methodRef("java/util/Arrays", "copyOf", "([DI)[D"));
+        run.local(ASTORE, RUN_STATE);
+        run.op(NEW, writer.classRef(RETURNS));
+        run.op(DUP);
+        run.op(INVOKESPECIAL, writer.methodRef(RETURNS, "<init>", "()V"));
+        run.local(ASTORE, RUN_RETURNS);
+        run.pushInt(0);
+        run.local(ISTORE, RUN_PC);
+
+        run.bind(loop);
+        run.frame();
+        run.local(ILOAD, RUN_PC);
+        run.pushInt(code.length);
+        run.jump(IF_ICMPGE, done);
+        run.local(ILOAD, RUN_PC);
+        run.jump(IFGE, known);
+        run.local(ALOAD, RUN_LINES);
+        run.local(ILOAD, RUN_PC);
+        run.op(INVOKESTATIC, writer.methodRef(SUPPORT, "lineIndex", "(L" + LINE_TABLE + ";I)I"));
+        run.local(ISTORE, RUN_PC);
+        run.jump(GOTO, loop);
+        run.bind(known);
+        run.frame();
+        for (var block = 0; block < starts.length; block++) {
+            var next = 3 + block;
+            if (block + 1 < starts.length) {
+                run.local(ILOAD, RUN_PC);
+                run.pushInt(starts[block + 1]);
+                run.jump(IF_ICMPGE, next);
+            }
+            run.local(ALOAD, RUN_STATE);
+            run.local(ALOAD, RUN_OUTPUT);
+            run.local(ALOAD, RUN_RANDOM);
+            run.local(ALOAD, RUN_RETURNS);
+            run.local(ILOAD, RUN_PC);
+            run.op(INVOKESTATIC, writer.methodRef(CLASS_NAME, "block" + block, BLOCK_DESCRIPTOR));
+            run.local(ISTORE, RUN_PC);
+            run.jump(GOTO, loop);
+            if (block + 1 < starts.length) {
+                run.bind(next);
+                run.frame();
+            }
+        }
+        run.bind(done);
+        run.frame();
+        run.local(ALOAD, RUN_STATE);
+        run.pushInt(0);
+        run.local(ALOAD, RUN_VARS);
+        run.pushInt(0);
+        run.pushInt(variables);
+        run.op(INVOKESTATIC, writer.methodRef("java/lang/System", "arraycopy", "(Ljava/lang/Object;ILjava/lang/Object;II)V"));
+        run.op(RETURN);
+        run.maxStack(5);
+        writer.method(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "run",
+                "([DL" + OUTPUT + ";L" + RANDOM_SOURCE + ";L" + LINE_TABLE + ";)V", run);
+    }
+
+    // Pairs each NEXT with the FOR whose exit is just past it; every FOR gets a local for its limit
+    private void pairLoops() {
+        for (var pc = 0; pc < code.length; pc++) {
+            if (code[pc] instanceof ForLoop loop) {
+                limits.put(pc, variables + limits.size());
+                // a FOR without NEXT exits to the linker's trap, and only if the loop is skipped
+                if (loop.exit() < code.length && code[loop.exit()] instanceof Fail) continue;
+                var next = loop.exit() - 1;
+                if (next <= pc || next >= code.length || !(code[next] instanceof NextLoop nextLoop) || nextLoop.slot() != loop.slot()
+                        || loopOfNext.putIfAbsent(next, pc) != null) {
+                    throw new UnsupportedOperationException("FOR " + loop.name() + " has no NEXT of its own");
+                }
+            }
+        }
+        for (var pc = 0; pc < code.length; pc++) {
+            if (code[pc] instanceof NextLoop next && !loopOfNext.containsKey(pc)) {
+                throw new UnsupportedOperationException("NEXT " + next.name() + " does not close a FOR");
+            }
+        }
+    }
+
+    // Rejects a GOTO, IF or GOSUB from outside a FOR ... NEXT to an instruction after its FOR, up to
+    // and including its NEXT; a computed one is taken to reach every line
+    private void rejectJumpsIntoLoops() {
+        var lines = program.lines().indices().clone();
+        Arrays.sort(lines);
+        for (var pc = 0; pc < code.length; pc++) {
+            var instruction = code[pc];
+            var target = -1;
+            if (instruction instanceof Jump jump) target = jump.target();
+            else if (instruction instanceof JumpIf jump) target = jump.target();
+            else if (instruction instanceof JumpIfVarCompare jump) target = jump.target();
+            else if (instruction instanceof Call call) target = call.target();
+            else if (!(instruction instanceof ComputedGoto || instruction instanceof ComputedGosub)) continue;
+            for (var loop : loopOfNext.entrySet()) {
+                var start = loop.getValue();
+                var next = loop.getKey();
+                if (pc >= start && pc <= next) continue;
+                var entered = target >= 0 ? target > start && target <= next : lineWithin(lines, start + 1, next);
+                if (entered) throw new UnsupportedOperationException("Jump into the body of FOR " + ((ForLoop) code[start]).name());
+            }
+        }
+    }
+
+    // Whether a line starts at an instruction index from first to last
+    private static boolean lineWithin(int[] sortedLines, int first, int last) {
+        var at = Arrays.binarySearch(sortedLines, first);
+        if (at < 0) at = -at - 1;
+        return at < sortedLines.length && sortedLines[at] <= last;
+    }
+
+    private boolean[] targets() {
+        var targets = new boolean[code.length + 1];
+        var computed = false;
+        for (var pc = 0; pc < code.length; pc++) {
+            var instruction = code[pc];
+            if (instruction instanceof Jump jump) {
+                targets[jump.target()] = true;
+            } else if (instruction instanceof JumpIf jump) {
+                targets[jump.target()] = true;
+            } else if (instruction instanceof JumpIfVarCompare jump) {
+                targets[jump.target()] = true;
+            } else if (instruction instanceof Call call) {
+                targets[call.target()] = true;
+                targets[pc + 1] = true;
+                returnSites.add(pc + 1);
+            } else if (instruction instanceof ComputedGosub) {
+                targets[pc + 1] = true;
+                returnSites.add(pc + 1);
+                computed = true;
+            } else if (instruction instanceof ComputedGoto) {
+                computed = true;
+            } else if (instruction instanceof ForLoop loop) {
+                targets[pc + 1] = true;
+                targets[loop.exit()] = true;
+            } else if (instruction instanceof End) {
+                targets[exit] = true;
+            }
+        }
+        if (computed) {
+            for (var index : program.lines().indices()) targets[index] = true;
+        }
+        return targets;
+    }
+
+    private byte[] frameLocals() {
+        var items = new ByteArrayOutputStream();
+        objectItem(items, writer.classRef("[D"));
+        objectItem(items, writer.classRef(OUTPUT));
+        objectItem(items, writer.classRef(RANDOM_SOURCE));
+        objectItem(items, writer.classRef(RETURNS));
+        items.write(ClassFileWriter.ITEM_INTEGER);
+        for (var i = 0; i < used.length; i++) items.write(ClassFileWriter.ITEM_DOUBLE);
+        return items.toByteArray();
+    }
+
+    private static void objectItem(ByteArrayOutputStream items, int classIndex) {
+        items.write(ClassFileWriter.ITEM_OBJECT);
+        items.write(classIndex >> 8);
+        items.write(classIndex);
+    }
+
+    // Gives each state slot that an instruction from `from` to `to` reads or writes a local
+    private void allocateLocals() {
+        locals = new int[variables + limits.size()];
+        Arrays.fill(locals, -1);
+        var slots = new ArrayList<Integer>();
+        for (var pc = from; pc < to; pc++) {
+            var instruction = code[pc];
+            if (instruction instanceof LoadVar load) slots.add(load.slot());
+            else if (instruction instanceof StoreVar store) slots.add(store.slot());
+            else if (instruction instanceof OperateVar operate) slots.add(operate.slot());
+            else if (instruction instanceof IncrementVar increment) slots.add(increment.slot());
+            else if (instruction instanceof JumpIfVarCompare compare) slots.add(compare.slot());
+            else if (instruction instanceof ForLoop loop) {
+                slots.add(loop.slot());
+                slots.add(limits.get(pc));
+            } else if (instruction instanceof NextLoop next) {
+                slots.add(next.slot());
+                slots.add(limits.get(loopOfNext.get(pc)));
+            }
+        }
+        used = slots.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+        for (var i = 0; i < used.length; i++) locals[used[i]] = FIRST_DOUBLE + 2 * i;
+    }
+
+    private int variable(int slot) {
+        return locals[slot];
+    }
+
+    // Emits one instruction; returns false if execution never falls through to the next one
+    private boolean emit(int pc, Instruction instruction) {
+        if (instruction instanceof Addition) {
+            arithmetic(DADD);
+        } else if (instruction instanceof Subtraction) {
+            arithmetic(DSUB);
+        } else if (instruction instanceof Multiplication) {
+            arithmetic(DMUL);
+        } else if (instruction instanceof Division) {
+            arithmetic(DDIV);
+        } else if (instruction instanceof Negation) {
+            pop(NUMBER);
+            out.op(DNEG);
+            push(NUMBER);
+        } else if (instruction instanceof Function function) {
+            pop(NUMBER);
+            call("java/lang/Math", switch (function.name()) {
+                case ABS -> "abs";
+                case ATN -> "atan";
+                case COS -> "cos";
+                case EXP -> "exp";
+                case INT -> "rint";
+                case LOG -> "log";
+                case SIN -> "sin";
+                case SQR -> "sqrt";
+                case TAN -> "tan";
+                // linking turns RND into RandomNumber
+                case RND -> throw new IllegalStateException();
+            }, "(D)D");
+            push(NUMBER);
+        } else if (instruction instanceof RandomNumber) {
+            out.local(ALOAD, RANDOM);
+            depth(1);
+            pop(NUMBER);
+            call(SUPPORT, "rnd", "(DL" + RANDOM_SOURCE + ";)D");
+            push(NUMBER);
+        } else if (instruction instanceof LoadVar load) {
+            out.local(DLOAD, variable(load.slot()));
+            push(NUMBER);
+        } else if (instruction instanceof StoreVar store) {
+            pop(NUMBER);
+            out.local(DSTORE, variable(store.slot()));
+        } else if (instruction instanceof PushConstant push && push.constant() instanceof Double number) {
+            pushDouble(number);
+        } else if (instruction instanceof PushConstant push && push.constant() instanceof String string) {
+            out.op(LDC_W, writer.string(string));
+            push(STRING);
+        } else if (instruction instanceof Print) {
+            out.local(ALOAD, OUTPUT_SINK);
+            depth(1);
+            var type = pop();
+            call(SUPPORT, "print", type == NUMBER ? "(DL" + OUTPUT + ";)V" : "(Ljava/lang/String;L" + OUTPUT + ";)V");
+        } else if (instruction instanceof PrintNewLine) {
+            out.local(ALOAD, OUTPUT_SINK);
+            depth(1);
+            out.op(INVOKEVIRTUAL, writer.methodRef(OUTPUT, "newLine", "()V"));
+        } else if (instruction instanceof Compare compare) {
+            var type = pop();
+            pop(type);
+            out.pushInt(compare.comparison().ordinal());
+            call(SUPPORT, "compare", type == NUMBER ? "(DDI)D" : "(Ljava/lang/String;Ljava/lang/String;I)D");
+            push(NUMBER);
+        } else if (instruction instanceof And) {
+            logic("and");
+        } else if (instruction instanceof Or) {
+            logic("or");
+        } else if (instruction instanceof Not) {
+            pop(NUMBER);
+            call(SUPPORT, "not", "(D)D");
+            push(NUMBER);
+        } else if (instruction instanceof OperateConstant operate) {
+            pop(NUMBER);
+            pushDouble(operate.constant());
+            pop(NUMBER);
+            out.op(opcode(operate.operation()));
+            push(NUMBER);
+        } else if (instruction instanceof OperateVar operate) {
+            pop(NUMBER);
+            out.local(DLOAD, variable(operate.slot()));
+            out.op(opcode(operate.operation()));
+            push(NUMBER);
+        } else if (instruction instanceof IncrementVar increment) {
+            out.local(DLOAD, variable(increment.slot()));
+            pushDouble(increment.amount());
+            out.op(DADD);
+            pop(NUMBER);
+            out.local(DSTORE, variable(increment.slot()));
+        } else if (instruction instanceof JumpIfVarCompare compare) {
+            empty();
+            out.local(DLOAD, variable(compare.slot()));
+            pushDouble(compare.constant());
+            pop(NUMBER);
+            branchIf(compare.comparison(), compare.target());
+        } else if (instruction instanceof JumpIf jump) {
+            pop(NUMBER);
+            empty();
+            out.op(DCONST_0);
+            out.op(DCMPL);
+            out.jump(IFNE, jump.target());
+        } else if (instruction instanceof ForLoop loop) {
+            pop(NUMBER);
+            pop(NUMBER);
+            empty();
+            var limit = variable(limits.get(pc));
+            out.local(DSTORE, limit);
+            out.local(DSTORE, variable(loop.slot()));
+            loopTest(loop, limit, loop.exit(), false);
+        } else if (instruction instanceof NextLoop next) {
+            var start = loopOfNext.get(pc);
+            var loop = (ForLoop) code[start];
+            empty();
+            out.local(DLOAD, variable(next.slot()));
+            pushDouble(loop.step());
+            pop(NUMBER);
+            out.op(DADD);
+            out.local(DSTORE, variable(next.slot()));
+            loopTest(loop, variable(limits.get(start)), start + 1, true);
+        } else if (instruction instanceof Jump jump) {
+            empty();
+            out.jump(GOTO, jump.target());
+            return false;
+        } else if (instruction instanceof Call call) {
+            empty();
+            pushReturnSite(pc + 1);
+            out.jump(GOTO, call.target());
+            return false;
+        } else if (instruction instanceof Return) {
+            empty();
+            out.local(ALOAD, RETURN_SITES);
+            out.op(INVOKEVIRTUAL, writer.methodRef(RETURNS, "pop", "()I"));
+            out.local(ISTORE, LINE);
+            out.jump(GOTO, returnDispatch);
+            returns = true;
+            return false;
+        } else if (instruction instanceof ComputedGoto) {
+            pop(NUMBER);
+            empty();
+            lineSwitch();
+            return false;
+        } else if (instruction instanceof ComputedGosub) {
+            pop(NUMBER);
+            empty();
+            out.op(D2I);
+            out.local(ISTORE, LINE);
+            pushReturnSite(pc + 1);
+            out.local(ILOAD, LINE);
+            lookupLine();
+            return false;
+        } else if (instruction instanceof End) {
+            empty();
+            out.jump(GOTO, exit);
+            return false;
+        } else if (instruction instanceof Fail fail) {
+            out.op(LDC_W, writer.string(fail.message()));
+            call(SUPPORT, "fail", "(Ljava/lang/String;)Ljava/lang/RuntimeException;");
+            out.op(ATHROW);
+            return false;
+        } else {
+            throw new UnsupportedOperationException("Cannot compile " + instruction);
+        }
+        return true;
+    }
+
+    private void pushReturnSite(int site) {
+        out.local(ALOAD, RETURN_SITES);
+        out.pushInt(Collections.binarySearch(returnSites, site));
+        out.op(INVOKEVIRTUAL, writer.methodRef(RETURNS, "push", "(I)V"));
+        depth(3);
+    }
+
+    private void lineSwitch() {
+        out.op(D2I);
+        out.op(DUP);
+        out.local(ISTORE, LINE);
+        lookupLine();
+    }
+
+    // Dispatches on the line number on the stack (also in LINE), leaving the block for a line outside it
+    private void lookupLine() {
+        var numbers = program.lines().numbers();
+        var indices = program.lines().indices();
+        var keys = new ArrayList<Integer>();
+        var lines = new ArrayList<Integer>();
+        for (var i = 0; i < numbers.length; i++) {
+            if (indices[i] >= from && indices[i] < to) {
+                keys.add(numbers[i]);
+                lines.add(indices[i]);
+            }
+        }
+        out.lookupSwitch(keys.stream().mapToInt(Integer::intValue).toArray(), lines.stream().mapToInt(Integer::intValue).toArray(), lineExit);
+    }
+
+    // Branches to target when the counter is still within the limit (again) or has passed it (exit)
+    private void loopTest(ForLoop loop, int limit, int target, boolean again) {
+        out.local(DLOAD, variable(loop.slot()));
+        out.local(DLOAD, limit);
+        depth(4);
+        // a NaN counter or limit never finishes a loop, as in LoopStack.finished
+        if (loop.step() >= 0) {
+            out.op(DCMPL);
+            out.jump(again ? IFLE : IFGT, target);
+        } else {
+            out.op(DCMPG);
+            out.jump(again ? IFGE : IFLT, target);
+        }
+    }
+
+    // Jumps to target when the two numbers on the stack compare true, NaN comparing false except for <>
+    private void branchIf(Comparison comparison, int target) {
+        switch (comparison) {
+            case EQUALS -> {
+                out.op(DCMPL);
+                out.jump(IFEQ, target);
+            }
+            case NOT_EQUALS -> {
+                out.op(DCMPL);
+                out.jump(IFNE, target);
+            }
+            case LESS -> {
+                out.op(DCMPG);
+                out.jump(IFLT, target);
+            }
+            case LESS_EQUAL -> {
+                out.op(DCMPG);
+                out.jump(IFLE, target);
+            }
+            case GREATER -> {
+                out.op(DCMPL);
+                out.jump(IFGT, target);
+            }
+            case GREATER_EQUAL -> {
+                out.op(DCMPL);
+                out.jump(IFGE, target);
+            }
+        }
+    }
+
+    private static int opcode(Arithmetic operation) {
+        return switch (operation) {
+            case ADD -> DADD;
+            case SUBTRACT -> DSUB;
+            case MULTIPLY -> DMUL;
+            case DIVIDE -> DDIV;
+        };
+    }
+
+    private void arithmetic(int opcode) {
+        pop(NUMBER);
+        pop(NUMBER);
+        out.op(opcode);
+        push(NUMBER);
+    }
+
+    private void logic(String name) {
+        pop(NUMBER);
+        pop(NUMBER);
+        call(SUPPORT, name, "(DD)D");
+        push(NUMBER);
+    }
+
+    private void pushDouble(double value) {
+        if (Double.doubleToRawLongBits(value) == 0) {
+            out.op(DCONST_0);
+        } else if (value == 1) {
+            out.op(DCONST_1);
+        } else {
+            out.op(LDC2_W, writer.doubleConstant(value));
+        }
+        push(NUMBER);
+    }
+
+    private void call(String owner, String name, String descriptor) {
+        out.op(INVOKESTATIC, writer.methodRef(owner, name, descriptor));
+    }
+
+    // Static types of the values on the operand stack, mirroring what the emitted code leaves there
+
+    private void push(char type) {
+        types.append(type);
+        depth += type == NUMBER ? 2 : 1;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private char pop() {
+        if (types.length() == 0) throw new IllegalStateException("Operand stack underflow");
+        var type = types.charAt(types.length() - 1);
+        types.setLength(types.length() - 1);
+        depth -= type == NUMBER ? 2 : 1;
+        return type;
+    }
+
+    private void pop(char expected) {
+        if (pop() != expected) throw new UnsupportedOperationException(expected == NUMBER ? "A string where a number is needed" : "A number where a string is needed");
+    }
+
+    private void empty() {
+        if (depth != 0) throw new UnsupportedOperationException("Branch with values on the stack");
+    }
+
+    // Notes extra words briefly pushed on top of the tracked values
+    private void depth(int words) {
+        maxDepth = Math.max(maxDepth, depth + words);
+    }
+
+}
@@ -0,0 +1,41 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+
+// A program compiled by JitCompiler: a static method of a hidden class that runs on an array of
+// variables, one double per slot, printing to an Output, drawing RND from a RandomSource and looking up
+// computed jumps between blocks in the LineTable
+public final class JitProgram implements Executable {
+
+    private final MethodHandle run;
+    private final List<String> variables;
+    private final LineTable lines;
+
+    JitProgram(MethodHandle run, List<String> variables, LineTable lines) {
+        this.run = run;
+        this.variables = variables;
+        this.lines = lines;
+    }
+
+    // Variable names by slot
+    public List<String> variables() {
+        return variables;
+    }
+
+    @Override
+    public Variables execute(Output output, RandomSource random) {
+        var vars = new Variables(variables);
+        try {
+            run.invokeExact(vars.numbers, output, random, lines);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        } finally {
+            output.flush();
+        }
+        return vars;
+    }
+
+}
@@ -0,0 +1,83 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.Arrays;
+
+// Run-time helpers called from classes generated by JitCompiler. They live in this package, as do the
+// hidden classes, so they need not be public. Comparisons and logic are calls rather than inline
+// branches so that the operand stack is empty at every branch target in generated code.
+final class JitSupport {
+
+    private static final Instruction.Comparison[] COMPARISONS = Instruction.Comparison.values();
+
+    private JitSupport() {
+    }
+
+    // The value is already on the stack when PRINT finds the Output, hence the argument order
+
+    static void print(double value, Output output) {
+        output.print(value);
+    }
+
+    static void print(String value, Output output) {
+        output.print(value);
+    }
+
+    static double compare(double lhs, double rhs, int comparison) {
+        return COMPARISONS[comparison].test(lhs, rhs) ? 1 : 0;
+    }
+
+    static double compare(String lhs, String rhs, int comparison) {
+        return COMPARISONS[comparison].test(lhs.compareTo(rhs), 0) ? 1 : 0;
+    }
+
+    static double and(double lhs, double rhs) {
+        return lhs != 0 && rhs != 0 ? 1 : 0;
+    }
+
+    static double or(double lhs, double rhs) {
+        return lhs != 0 || rhs != 0 ? 1 : 0;
+    }
+
+    static double not(double value) {
+        return value == 0 ? 1 : 0;
+    }
+
+    static double rnd(double argument, RandomSource random) {
+        return random.next(argument);
+    }
+
+    static RuntimeException fail(String message) {
+        return new IllegalStateException(message);
+    }
+
+    static RuntimeException undefinedLine(int line) {
+        return new IllegalStateException("Undefined line " + line);
+    }
+
+    // The instruction index of a line that a block returned as -1 - its number
+    static int lineIndex(LineTable lines, int encoded) {
+        var line = -1 - encoded;
+        var index = lines.index(line);
+        if (index < 0) throw undefinedLine(line);
+        return index;
+    }
+
+    // GOSUB return sites, as indices into the generated RETURN switches
+    static final class Returns {
+
+        private int[] sites = new int[16];
+        private int depth;
+
+        void push(int site) {
+            if (depth == sites.length) sites = Arrays.copyOf(sites, depth * 2);
+            sites[depth++] = site;
+        }
+
+        int pop() {
+            if (depth == 0) throw new IllegalStateException("RETURN without GOSUB");
+            return sites[--depth];
+        }
+
+    }
+
+}
@@ -11,122 +11,360 @@ package cpl_parser_project_summer_2021.parser;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static cpl_parser_project_summer_2021.parser.Token.Type.*;
 import static java.lang.Character.toUpperCase;
 
-public class Lexer {
+public class Lexer implements AutoCloseable {
 
-	private Set<String> keywords;
+	public static final Set<String> ALL_KEYWORDS = Arrays.stream(Token.Keyword.values())
+			.map(Token.Keyword::name)
+			.collect(Collectors.toUnmodifiableSet());
+
+	private static final int WINDOW_SIZE = 64 * 1024;
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	// Shared instances for every token whose lexeme never varies
+	private static final Token[] FIXED_TOKENS = new Token[Token.Type.values().length];
+	private static final Token CRLF = new Token("\r\n", NEWLINE);
+	private static final Token CR = new Token("\r", NEWLINE);
+	private static final Token LF = new Token("\n", NEWLINE);
+
+	static {
+		for (var token : new Token[] {
+				new Token(null, EOF), new Token(null, REM),
+				new Token(":", COLON), new Token("#", HASH), new Token("(", LPAREN), new Token(")", RPAREN),
+				new Token(",", COMMA), new Token(";", SEMI), new Token("=", EQUALS), new Token("<=", LTE),
+				new Token("<>", DIAMOND), new Token("<", LT), new Token(">=", GTE), new Token(">", GT),
+				new Token("+", PLUS), new Token("-", MINUS), new Token("*", TIMES), new Token("/", DIVIDE),
+				new Token("^", POWER)
+		}) {
+			FIXED_TOKENS[token.type().ordinal()] = token;
+		}
+	}
+
+	// Perfect hash over every keyword and REM, keyed on the first, second-to-last and last letters and the
+	// length. Entries hold the shared token for the word, so keyword lexemes are the interned enum names.
+	private static final int MAX_KEYWORD_LENGTH = 6;
+	private static final String[] KEYWORD_NAMES = new String[64];
+	private static final Token[] KEYWORD_TOKENS = new Token[64];
+
+	static {
+		for (var keyword : Token.Keyword.values()) {
+			addKeyword(keyword.name(), new Token(keyword.name(), KEYWORD, keyword, 0));
+		}
+		addKeyword(REM.name(), FIXED_TOKENS[REM.ordinal()]);
+	}
+
+	private static void addKeyword(String name, Token token) {
+		var slot = keywordHash(name.charAt(0), name.charAt(name.length() - 2), name.charAt(name.length() - 1), name.length());
+		if (KEYWORD_NAMES[slot] != null || name.length() > MAX_KEYWORD_LENGTH) {
+			throw new IllegalStateException("Keyword table cannot hold " + name);
+		}
+		KEYWORD_NAMES[slot] = name;
+		KEYWORD_TOKENS[slot] = token;
+	}
+
+	private static int keywordHash(char first, char secondToLast, char last, int length) {
+		return (first * 25 + secondToLast * 55 + last + length) & 63;
+	}
+
+	private EnumSet<Token.Keyword> keywords;
+	// null when the whole source is already in buffer (mapped file or in-memory source), or once read to EOF
 	private InputStream input;
+	// whether input was opened here, and so is closed here when it reaches EOF or the lexer is closed
+	private boolean ownsInput;
+	private ByteBuffer buffer;
 	private char current;
 	private boolean eof = false;
+
+	// Current token, reused from one advance() to the next
+	private Token.Type type;
+	private char[] text = new char[64];
+	private int length;
+	private double number;
+	private Token keyword;
+	// 1-based source line of the next character and of the current token's first character
+	private int line = 1;
+	private int tokenLine;
 	
+	// Streaming mode for stdin, pipes and other non-seekable input: reads into a reusable window
+	public Lexer(InputStream input) throws IOException {
+		this(input, ALL_KEYWORDS);
+	}
+
 	public Lexer(InputStream input, Set<String> keywords) throws IOException {
 		this.input = input;
-		this.keywords = keywords;
+		this.keywords = enabled(keywords);
+		this.buffer = ByteBuffer.allocate(WINDOW_SIZE).limit(0);
+		nextChar();
+	}
+
+	// Maps regular files into memory, falls back to streaming for anything that cannot be mapped
+	public Lexer(Path path) throws IOException {
+		this(path, ALL_KEYWORDS);
+	}
+
+	public Lexer(Path path, Set<String> keywords) throws IOException {
+		this.keywords = enabled(keywords);
+		if (Files.isRegularFile(path) && Files.size(path) <= Integer.MAX_VALUE) {
+			try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+		} else {
+			this.input = Files.newInputStream(path);
+			this.ownsInput = true;
+			this.buffer = ByteBuffer.allocate(WINDOW_SIZE).limit(0);
+		}
+		try {
+			nextChar();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	// Lexes the bytes between the source's position and limit, without modifying the source
+	public Lexer(ByteBuffer source) throws IOException {
+		this(source, ALL_KEYWORDS);
+	}
+
+	public Lexer(ByteBuffer source, Set<String> keywords) throws IOException {
+		this.keywords = enabled(keywords);
+		this.buffer = source.duplicate();
 		nextChar();
 	}
+
+	// Only names of Token.Keyword constants can be enabled, the parser has no use for any other word
+	private static EnumSet<Token.Keyword> enabled(Set<String> names) {
+		var enabled = EnumSet.noneOf(Token.Keyword.class);
+		for (var keyword : Token.Keyword.values()) {
+			if (names.contains(keyword.name())) enabled.add(keyword);
+		}
+		return enabled;
+	}
 	
 	private void nextChar() throws IOException {
-		var c = input.read();
-		if (c == -1) eof = true;
-		current = (char) c;
+		if (!buffer.hasRemaining() && !fill()) {
+			eof = true;
+			current = (char) -1;
+			return;
+		}
+		current = (char) (buffer.get() & 0xFF);
+	}
+
+	// Closes the stream opened for a Path that could not be mapped, if it has not reached EOF; a stream
+	// passed to the constructor belongs to the caller and is left open
+	@Override
+	public void close() throws IOException {
+		if (ownsInput && input != null) input.close();
+		input = null;
+	}
+
+	private boolean fill() throws IOException {
+		if (input == null) return false;
+		int count;
+		do {
+			count = input.read(buffer.array(), 0, buffer.capacity());
+		} while (count == 0);
+		if (count == -1) {
+			if (ownsInput) input.close();
+			input = null;
+			return false;
+		}
+		buffer.position(0).limit(count);
+		return true;
 	}
 	
-	public Token getNextToken() throws IOException, LexerException {
+	// Flyweight mode: scans the next token without allocating. Its text and numeric value can be read
+	// through type(), length(), charAt(), text() and number() until the next call.
+	public Token.Type advance() throws IOException, LexerException {
+		length = 0;
 		while (!eof && (current == ' ' || current == '\t')) nextChar();
+		tokenLine = line;
 		if (eof) {
-			return new Token(null, EOF);
+			type = EOF;
 		} else if ((current >= 'A' && current <= 'Z') || (current >= 'a' && current <= 'z')) {
-			var builder = new StringBuilder();
 			while (!eof && (current >= 'A' && current <= 'Z' || current >= 'a' && current <= 'z')) {
-				builder.append(toUpperCase(current));
+				append(toUpperCase(current));
 				nextChar();
 			}
 			if (!eof && (current == '$' || current == '%')) {
-				builder.append(current);
+				append(current);
 				nextChar();
 			}
-			var value = builder.toString();
-			if (keywords.contains(value)) {
-				return new Token(value, KEYWORD);
-			} else if (REM.name().equals(value)) {
+			keyword = matchKeyword();
+			if (keyword == null) {
+				type = ID;
+			} else if (keyword.type() == REM) {
 				while (!eof && current != '\r' && current != '\n') nextChar();
-				return new Token(null, REM);
+				length = 0;
+				type = REM;
 			} else {
-				return new Token(value, ID);
+				type = KEYWORD;
 			}
 		} else if (current == '"') {
-			var builder = new StringBuilder();
 			nextChar(); // current is '"'
 			while (current != '"') {
-				builder.append(current);
+				if (eof || current == '\r' || current == '\n') throw new LexerException("Unterminated String Literal", tokenLine);
+				append(current);
 				nextChar();
-				if (eof || current == '\r' || current == '\n') throw new LexerException("Unterminated String Literal");
 			}
 			nextChar(); // current is '"'
-			return new Token(builder.toString(), STRING);
+			type = STRING;
 		} else if (current >= '0' && current <= '9' || current == '.') {
-			var builder = new StringBuilder();
-			var decimal = false;
-			while (!eof && (current >= '0' && current <= '9' || current == '.' && !decimal)) {
-				if (current == '.') decimal = true;
-				builder.append(current);
-				nextChar();
-			}
-			return new Token(builder.toString(), NUMBER);
+			scanNumber();
+			type = NUMBER;
 		} else if (current == '\r' || current == '\n') {
-			var first = current;
+			append(current);
 			nextChar();
-			if (!eof && first == '\r' && current == '\n') {
+			if (!eof && text[0] == '\r' && current == '\n') {
+				append(current);
 				nextChar();
-				return new Token("\r\n", NEWLINE);
-			} else {
-				return new Token(String.valueOf(first), NEWLINE);
 			}
+			line++;
+			type = NEWLINE;
 		} else {
 			var advance = true;
-			var token = switch (current) {
-				case ':' -> new Token(":", COLON);
-				case '#' -> new Token("#", HASH);
-				case '(' -> new Token("(", LPAREN);
-				case ')' -> new Token(")", RPAREN);
-				case ',' -> new Token(",", COMMA);
-				case ';' -> new Token(";", SEMI);
-				case '=' -> new Token("=", EQUALS);
+			type = switch (current) {
+				case ':' -> COLON;
+				case '#' -> HASH;
+				case '(' -> LPAREN;
+				case ')' -> RPAREN;
+				case ',' -> COMMA;
+				case ';' -> SEMI;
+				case '=' -> EQUALS;
 				case '<' -> {
 					nextChar();
 					if (!eof) {
 						if (current == '=') {
-							yield new Token("<=", LTE);
+							yield LTE;
 						} else if (current == '>') {
-							yield new Token("<>", DIAMOND);
+							yield DIAMOND;
 						}
 					}
 					advance = false;
-					yield new Token("<", LT);
+					yield LT;
 				}
 				case '>' -> {
 					nextChar();
 					if (!eof && current == '=') {
-						yield new Token(">=", GTE);
+						yield GTE;
 					}
 					advance = false;
-					yield new Token(">", GT);
+					yield GT;
 				}
-				case '+' -> new Token("+", PLUS);
-				case '-' -> new Token("-", MINUS);
-				case '*' -> new Token("*", TIMES);
-				case '/' -> new Token("/", DIVIDE);
-				case '^' -> new Token("^", POWER);
-				default -> throw new LexerException("Unexpected character '" + current + "'");
+				case '+' -> PLUS;
+				case '-' -> MINUS;
+				case '*' -> TIMES;
+				case '/' -> DIVIDE;
+				case '^' -> POWER;
+				default -> throw new LexerException("Unexpected character '" + current + "'", tokenLine);
 			};
 			if (advance) nextChar();
-			return token;
 		}
+		return type;
+	}
+
+	// Accumulates the literal straight into a double. A mantissa below 2^53 divided by an exact power
+	// of ten is correctly rounded, so this agrees with Double.parseDouble; longer literals fall back to it.
+	private void scanNumber() throws IOException, LexerException {
+		long mantissa = 0;
+		var digits = 0;
+		var fraction = -1;
+		while (!eof && (current >= '0' && current <= '9' || current == '.' && fraction < 0)) {
+			if (current == '.') {
+				fraction = 0;
+			} else {
+				if (mantissa < MAX_EXACT_MANTISSA) mantissa = mantissa * 10 + (current - '0');
+				digits++;
+				if (fraction >= 0) fraction++;
+			}
+			append(current);
+			nextChar();
+		}
+		if (digits == 0) throw new LexerException("Malformed number '" + text() + "'", tokenLine);
+		if (mantissa < MAX_EXACT_MANTISSA && fraction < POWERS_OF_TEN.length) {
+			number = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+		} else {
+			number = Double.parseDouble(text());
+		}
+	}
+
+	// Looks the scanned word up in the keyword table without creating a String
+	private Token matchKeyword() {
+		if (length < 2 || length > MAX_KEYWORD_LENGTH) return null;
+		var slot = keywordHash(text[0], text[length - 2], text[length - 1], length);
+		var name = KEYWORD_NAMES[slot];
+		if (name == null || name.length() != length) return null;
+		for (var i = 0; i < length; i++) {
+			if (name.charAt(i) != text[i]) return null;
+		}
+		var token = KEYWORD_TOKENS[slot];
+		if (token.type() == KEYWORD && !keywords.contains(token.keyword())) return null;
+		return token;
+	}
+
+	private void append(char c) {
+		if (length == text.length) text = Arrays.copyOf(text, length * 2);
+		text[length++] = c;
+	}
+
+	public Token.Type type() {
+		return type;
+	}
+
+	// Source line the current token starts on
+	public int line() {
+		return tokenLine;
+	}
+
+	// Keyword of the current KEYWORD token
+	public Token.Keyword keyword() {
+		return type == KEYWORD ? keyword.keyword() : null;
+	}
+
+	// Numeric value of the current NUMBER token
+	public double number() {
+		return number;
+	}
+
+	// Length of the current token's text: the upper-cased name of an ID or KEYWORD, the contents of a
+	// STRING, the digits of a NUMBER or the characters of a NEWLINE. Punctuation has no text.
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		return text[index];
+	}
+
+	public String text() {
+		return new String(text, 0, length);
+	}
+
+	public Token getNextToken() throws IOException, LexerException {
+		return switch (advance()) {
+			case KEYWORD -> keyword;
+			case ID -> new Token(text(), ID);
+			case STRING -> new Token(text(), STRING);
+			case NUMBER -> new Token(text(), NUMBER, null, number);
+			case NEWLINE -> length == 2 ? CRLF : text[0] == '\r' ? CR : LF;
+			default -> FIXED_TOKENS[type.ordinal()];
+		};
 	}
 		
 }
-
@@ -10,12 +10,37 @@
 package cpl_parser_project_summer_2021.parser;
 
 public class LexerException extends Exception {
+
+  // 1-based source line the error was found on, 0 when unknown
+  private final int line;
   
   public LexerException() {
     super();
+    this.line = 0;
   }
   
   public LexerException(String message) {
+    this(message, 0);
+  }
+
+  public LexerException(String message, int line) {
     super(message);
+    this.line = line;
+  }
+
+  public int getLine() {
+    return line;
+  }
+
+  // The same error reported on another line, for sources lexed in slices
+  LexerException atLine(int line) {
+    var moved = new LexerException(super.getMessage(), line);
+    moved.setStackTrace(getStackTrace());
+    return moved;
+  }
+
+  @Override
+  public String getMessage() {
+    return line > 0 ? "Line " + line + ": " + super.getMessage() : super.getMessage();
   }
 }
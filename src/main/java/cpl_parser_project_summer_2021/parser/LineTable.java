@@ -0,0 +1,72 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.Arrays;
+
+// Maps BASIC line numbers to instruction indices. When the numbers are reasonably dense (the usual
+// 10, 20, 30...) the lookup is a single array access; sparse numbering falls back to a binary search.
+// Either way the cost does not grow with the length of the program.
+public final class LineTable {
+
+    // Dense lookup is used while the array stays within this many slots per line
+    private static final int MAX_SLOTS_PER_LINE = 16;
+
+    private final int[] numbers;
+    private final int[] indices;
+    private final int first;
+    private final int[] dense;
+
+    // numbers[i] starts at instruction indices[i]; a repeated number keeps its first index
+    public LineTable(int[] numbers, int[] indices) {
+        var order = new long[numbers.length];
+        for (var i = 0; i < numbers.length; i++) order[i] = (long) numbers[i] << 32 | i;
+        Arrays.sort(order);
+        var sortedNumbers = new int[numbers.length];
+        var sortedIndices = new int[numbers.length];
+        var count = 0;
+        for (var key : order) {
+            var number = (int) (key >> 32);
+            if (count > 0 && sortedNumbers[count - 1] == number) continue;
+            sortedNumbers[count] = number;
+            sortedIndices[count++] = indices[(int) key];
+        }
+        this.numbers = Arrays.copyOf(sortedNumbers, count);
+        this.indices = Arrays.copyOf(sortedIndices, count);
+        first = count == 0 ? 0 : this.numbers[0];
+        var span = count == 0 ? 0L : (long) this.numbers[count - 1] - first + 1;
+        if (count > 0 && span <= (long) count * MAX_SLOTS_PER_LINE) {
+            dense = new int[(int) span];
+            Arrays.fill(dense, -1);
+            for (var i = 0; i < count; i++) dense[this.numbers[i] - first] = this.indices[i];
+        } else {
+            dense = null;
+        }
+    }
+
+    // Instruction index where line starts, or -1 if there is no such line
+    public int index(int line) {
+        if (dense != null) {
+            var offset = (long) line - first;
+            return offset >= 0 && offset < dense.length ? dense[(int) offset] : -1;
+        }
+        var found = Arrays.binarySearch(numbers, line);
+        return found >= 0 ? indices[found] : -1;
+    }
+
+    // Line numbers in ascending order, and the index each starts at
+    int[] numbers() {
+        return numbers.clone();
+    }
+
+    int[] indices() {
+        return indices.clone();
+    }
+
+    public int size() {
+        return numbers.length;
+    }
+
+    boolean isDense() {
+        return dense != null;
+    }
+
+}
@@ -0,0 +1,57 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.Arrays;
+
+// Active FOR loops, innermost last, in parallel primitive arrays: the counter's variable slot, the
+// limit and STEP (evaluated once, when the FOR runs) and the index of the first instruction of the body.
+// The counter itself stays in its variable so the body can read and change it.
+final class LoopStack {
+
+    private int[] slots = new int[8];
+    private double[] limits = new double[8];
+    private double[] steps = new double[8];
+    private int[] bodies = new int[8];
+    private int size;
+
+    static boolean finished(double counter, double limit, double step) {
+        return step >= 0 ? counter > limit : counter < limit;
+    }
+
+    void enter(int slot, double limit, double step, int body) {
+        // running a FOR again on the same counter (e.g. after a GOTO out of the loop) restarts it and
+        // drops any loops that were inside it
+        for (var i = size - 1; i >= 0; i--) {
+            if (slots[i] == slot) {
+                size = i;
+                break;
+            }
+        }
+        if (size == slots.length) {
+            slots = Arrays.copyOf(slots, size * 2);
+            limits = Arrays.copyOf(limits, size * 2);
+            steps = Arrays.copyOf(steps, size * 2);
+            bodies = Arrays.copyOf(bodies, size * 2);
+        }
+        slots[size] = slot;
+        limits[size] = limit;
+        steps[size] = step;
+        bodies[size++] = body;
+    }
+
+    // NEXT on the counter in slot: steps it and returns the loop body's index, or pc once the loop is done.
+    // Loops inside the one being continued are left, as in classic BASIC.
+    int next(int slot, double[] numbers, Object[] references, int pc) {
+        var frame = size - 1;
+        while (frame >= 0 && slots[frame] != slot) frame--;
+        if (frame < 0) throw new IllegalStateException("NEXT without FOR");
+        if (references[slot] != null) throw new ClassCastException("Expected a number but found " + references[slot]);
+        var counter = numbers[slot] += steps[frame];
+        if (finished(counter, limits[frame], steps[frame])) {
+            size = frame;
+            return pc;
+        }
+        size = frame + 1;
+        return bodies[frame];
+    }
+
+}
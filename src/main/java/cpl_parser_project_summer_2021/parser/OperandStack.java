@@ -0,0 +1,58 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.Arrays;
+
+// Interpreter operand stack without boxing or locking: numbers live in a double[] lane, strings in a
+// parallel reference lane whose slot is null whenever the value is a number
+public final class OperandStack {
+
+    private double[] numbers;
+    private Object[] references;
+    private int size;
+
+    public OperandStack() {
+        this(16);
+    }
+
+    public OperandStack(int capacity) {
+        numbers = new double[Math.max(1, capacity)];
+        references = new Object[Math.max(1, capacity)];
+    }
+
+    public void pushNumber(double value) {
+        if (size == numbers.length) grow();
+        numbers[size] = value;
+        references[size++] = null;
+    }
+
+    public void pushReference(Object value) {
+        if (size == numbers.length) grow();
+        references[size++] = value;
+    }
+
+    public double popNumber() {
+        var reference = references[--size];
+        if (reference != null) throw new ClassCastException("Expected a number but found " + reference);
+        return numbers[size];
+    }
+
+    public Object popReference() {
+        var reference = references[--size];
+        references[size] = null;
+        return reference;
+    }
+
+    public boolean isNumber() {
+        return references[size - 1] == null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        numbers = Arrays.copyOf(numbers, size * 2);
+        references = Arrays.copyOf(references, size * 2);
+    }
+
+}
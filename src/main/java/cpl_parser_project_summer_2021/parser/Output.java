@@ -0,0 +1,102 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+// Where PRINT writes. Text is collected in a reusable buffer and handed to the target only when the
+// buffer is full or on flush(): every executor flushes when the program stops (END, STOP, the last line
+// or an error), and INPUT must flush before it reads so that its prompt is visible. The target can be
+// any Appendable, e.g. System.out or a StringBuilder to capture the output in memory.
+public final class Output {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final Appendable target;
+    private final char[] buffer;
+    private int length;
+
+    public Output(Appendable target) {
+        this(target, DEFAULT_CAPACITY);
+    }
+
+    public Output(Appendable target, int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        this.target = target;
+        buffer = new char[capacity];
+    }
+
+    // System.out as it is now
+    public static Output standard() {
+        return new Output(System.out);
+    }
+
+    // A value as PRINT shows it: the number or string followed by a space
+    public void print(double value) {
+        append(Double.toString(value));
+        append(' ');
+    }
+
+    public void print(String value) {
+        append(value);
+        append(' ');
+    }
+
+    public void newLine() {
+        append(LINE_SEPARATOR);
+    }
+
+    // Writes out everything buffered, and flushes the target if it can be flushed
+    public void flush() {
+        drain();
+        if (target instanceof Flushable flushable) {
+            try {
+                flushable.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void append(char c) {
+        if (length == buffer.length) drain();
+        buffer[length++] = c;
+    }
+
+    private void append(String text) {
+        var size = text.length();
+        if (length + size > buffer.length) {
+            drain();
+            if (size > buffer.length) {
+                write(text);
+                return;
+            }
+        }
+        text.getChars(0, size, buffer, length);
+        length += size;
+    }
+
+    private void drain() {
+        if (length == 0) return;
+        try {
+            if (target instanceof Writer writer) writer.write(buffer, 0, length);
+            else target.append(CharBuffer.wrap(buffer, 0, length));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        length = 0;
+    }
+
+    private void write(String text) {
+        try {
+            target.append(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static cpl_parser_project_summer_2021.parser.ParseTree.*;
+
+// Parses a large source in chunks on a ForkJoinPool. Every newline byte in a valid program ends a line
+// (string literals and remarks cannot span lines), so the source is cut right after newlines and each
+// chunk is lexed and parsed on its own. Chunks are concatenated in source order, giving the same
+// LinesNode as Parser.parseLines(); the first error in source order is rethrown with its absolute line.
+public class ParallelParser {
+
+    // Below this many bytes per chunk, task overhead outweighs the parsing work
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    public static LinesNode parseLines(Path path) throws IOException, LexerException, ParserException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                try (var lexer = new Lexer(path)) {
+                    return new Parser(lexer).parseLines();
+                }
+            }
+            return parseLines(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static LinesNode parseLines(ByteBuffer source) throws IOException, LexerException, ParserException {
+        return parseLines(source, Lexer.ALL_KEYWORDS, ForkJoinPool.commonPool());
+    }
+
+    public static LinesNode parseLines(ByteBuffer source, Set<String> keywords, ForkJoinPool pool)
+            throws IOException, LexerException, ParserException {
+        var bounds = split(source, pool.getParallelism() * CHUNKS_PER_THREAD);
+        if (bounds.length <= 2) return new Parser(new Lexer(source, keywords)).parseLines();
+
+        var tasks = new ArrayList<ChunkTask>(bounds.length - 1);
+        for (var i = 0; i + 1 < bounds.length; i++) {
+            var chunk = source.duplicate().limit(bounds[i + 1]).position(bounds[i]);
+            tasks.add(new ChunkTask(chunk, keywords));
+            pool.execute(tasks.get(i));
+        }
+        var lines = new ArrayList<LineNode>();
+        for (var i = 0; i < tasks.size(); i++) {
+            var task = tasks.get(i);
+            var chunkLines = task.join();
+            if (task.failure != null) {
+                for (var j = i + 1; j < tasks.size(); j++) tasks.get(j).cancel(false);
+                rethrow(task.failure, countLines(source, source.position(), bounds[i]));
+            }
+            lines.addAll(chunkLines);
+        }
+        return new LinesNode(lines);
+    }
+
+    // Keeps the checked exception of a failed chunk instead of letting the pool wrap it
+    private static final class ChunkTask extends RecursiveTask<List<LineNode>> {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer chunk;
+        private final Set<String> keywords;
+        private Exception failure;
+
+        ChunkTask(ByteBuffer chunk, Set<String> keywords) {
+            this.chunk = chunk;
+            this.keywords = keywords;
+        }
+
+        @Override
+        protected List<LineNode> compute() {
+            try {
+                return new Parser(new Lexer(chunk, keywords)).parseLines().lines();
+            } catch (IOException | LexerException | ParserException e) {
+                failure = e;
+                return null;
+            }
+        }
+    }
+
+    // Chunk boundaries as buffer positions, first and last being the source's position and limit
+    private static int[] split(ByteBuffer source, int chunks) {
+        var start = source.position();
+        var end = source.limit();
+        var size = Math.max(MIN_CHUNK_SIZE, (end - start) / Math.max(1, chunks));
+        var bounds = new ArrayList<Integer>();
+        bounds.add(start);
+        var position = start + size;
+        while (position < end) {
+            while (position < end && source.get(position) != '\n' && source.get(position) != '\r') position++;
+            if (position < end && source.get(position) == '\r' && position + 1 < end && source.get(position + 1) == '\n') position++;
+            if (position + 1 >= end) break;
+            bounds.add(position + 1);
+            position += 1 + size;
+        }
+        bounds.add(end);
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // Lines before position, counted the way the lexer counts NEWLINE tokens
+    private static int countLines(ByteBuffer source, int from, int to) {
+        var lines = 0;
+        for (var i = from; i < to; i++) {
+            var b = source.get(i);
+            if (b == '\n' || b == '\r' && (i + 1 == to || source.get(i + 1) != '\n')) lines++;
+        }
+        return lines;
+    }
+
+    private static void rethrow(Exception failure, int linesBefore) throws IOException, LexerException, ParserException {
+        if (failure instanceof ParserException e) throw e.getLine() > 0 ? e.atLine(e.getLine() + linesBefore) : e;
+        if (failure instanceof LexerException e) throw e.getLine() > 0 ? e.atLine(e.getLine() + linesBefore) : e;
+        throw (IOException) failure;
+    }
+
+}
@@ -3,15 +3,13 @@ package cpl_parser_project_summer_2021.parser;
 import java.util.ArrayList;
 import java.util.List;
 
-import hu.webarticum.treeprinter.TreeNode;
-import hu.webarticum.treeprinter.SimpleTreeNode;
 import jdk.jshell.spi.ExecutionControl;
 
 import static cpl_parser_project_summer_2021.parser.Instruction.*;
 
 public interface ParseTree {
 
-    TreeNode makeTree();
+    // Drawing a tree is ParseTreePrinter's job, so that running a program does not load tree-printer
 
     // Implement for lines, line, 2 kinds of supported statements, rem, all expressions
     default List<Instruction> compile() {
@@ -33,73 +31,24 @@ public interface ParseTree {
             }
             return instructions;
         }
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<lines>");
-            for (var line : lines) {
-                node.addChild(line.makeTree());
-                node.addChild(new SimpleTreeNode("(new line)"));
-            }
-            return node;
-        }
     }
 
     public record LineNode(NumberNode number, List<StatementTree> statements) implements ParseTree {
         @Override
         public List<Instruction> compile() {
             var instructions = new ArrayList<Instruction>();
+            instructions.add(new Line((int) number.value()));
             for (var statement : statements) {
                 instructions.addAll(statement.compile());
             }
             return instructions;
         }
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<line>");
-            node.addChild(number.makeTree());
-            var first = true;
-            for(var statement: statements) {
-                if (first) first = false;
-                else node.addChild(new SimpleTreeNode(";"));
-                node.addChild(statement.makeTree());
-            }
-            return node;
-        }
     }
 
     public record DataNode(List<ConstantTree> data) implements StatementTree {
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("DATA"));
-            var first = true;
-            for (var datum : data) {
-                if (first) first = false;
-                else node.addChild(new SimpleTreeNode(";"));
-                node.addChild(datum.makeTree());
-            }
-            return node;
-        }
     }
 
     public record DimNode(String name, List<NumberNode> lengths) implements StatementTree {
-
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("DIM"));
-            var id = new SimpleTreeNode("ID");
-            id.addChild(new SimpleTreeNode(name));
-            node.addChild(id);
-            var first = true;
-            for (var length : lengths) {
-                if (first) first = false;
-                else node.addChild(new SimpleTreeNode(";"));
-                node.addChild(length.makeTree());
-            }
-            return node;
-        }
-
     }
 
     public record EndNode() implements StatementTree {
@@ -109,87 +58,57 @@ public interface ParseTree {
             instructions.add(new End());
             return instructions;
         }
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("END"));
-            return node;
-        }
     }
 
     public record ForNode(String var, ExpressionTree from, ExpressionTree to, ConstantTree step) implements StatementTree {
         @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("FOR"));
-            var id = new SimpleTreeNode("ID");
-            id.addChild(new SimpleTreeNode(var));
-            node.addChild(id);
-            node.addChild(new SimpleTreeNode("="));
-            node.addChild(from.makeTree());
-            node.addChild(new SimpleTreeNode("TO"));
-            node.addChild(to.makeTree());
-            if (step != null) {
-                node.addChild(new SimpleTreeNode("STEP"));
-                node.addChild(step.makeTree());
-            }
-            return node;
+        public List<Instruction> compile() {
+            if (step != null && !(step instanceof NumberNode)) throw new UnsupportedOperationException("STEP must be a number");
+            var instructions = from.compile();
+            instructions.addAll(to.compile());
+            instructions.add(new For(var, step == null ? 1 : ((NumberNode) step).value()));
+            return instructions;
         }
     }
 
     public record GotoNode(ExpressionTree destination) implements StatementTree {
         @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("GOTO"));
-            node.addChild(destination.makeTree());
-            return node;
+        public List<Instruction> compile() {
+            if (destination instanceof NumberNode line) {
+                var instructions = new ArrayList<Instruction>();
+                instructions.add(new Goto((int) line.value()));
+                return instructions;
+            }
+            var instructions = destination.compile();
+            instructions.add(new ComputedGoto());
+            return instructions;
         }
     }
 
     public record GosubNode(ExpressionTree destination) implements StatementTree {
         @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("GOSUB"));
-            node.addChild(destination.makeTree());
-            return node;
+        public List<Instruction> compile() {
+            if (destination instanceof NumberNode line) {
+                var instructions = new ArrayList<Instruction>();
+                instructions.add(new Gosub((int) line.value()));
+                return instructions;
+            }
+            var instructions = destination.compile();
+            instructions.add(new ComputedGosub());
+            return instructions;
         }
     }
 
     public record IfNode(ExpressionTree condition, NumberNode destination) implements StatementTree {
         @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("IF"));
-            node.addChild(condition.makeTree());
-            node.addChild(new SimpleTreeNode("THEN"));
-            node.addChild(destination.makeTree());
-            return node;
+        public List<Instruction> compile() {
+            var instructions = condition.compile();
+            instructions.add(new IfGoto((int) destination.value()));
+            return instructions;
         }
     }
 
     public record InputNode(String prompt, List<String> vars) implements StatementTree {
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("INPUT"));
-            if (prompt != null) {
-                var string = new SimpleTreeNode("String");
-                string.addChild(new SimpleTreeNode(prompt));
-                node.addChild(string);
-                node.addChild(new SimpleTreeNode(";"));
-            }
-            var first = true;
-            for (var var : vars) {
-                if (first) first = false;
-                else node.addChild(new SimpleTreeNode(";"));
-                var id = new SimpleTreeNode("ID");
-                id.addChild(new SimpleTreeNode(var));
-                node.addChild(id);
-            }
-            return node;
-        }
     }
 
     public record LetNode(String name, ExpressionTree value) implements StatementTree {
@@ -199,33 +118,16 @@ public interface ParseTree {
             instructions.add(new SetVar(name));
             return instructions;
         }
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("LET"));
-            var id = new SimpleTreeNode("ID");
-            id.addChild(new SimpleTreeNode(name));
-            node.addChild(id);
-            node.addChild(new SimpleTreeNode("="));
-            node.addChild(value.makeTree());
-            return node;
-        }
     }
 
     public record NextNode(List<String> vars) implements StatementTree {
         @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("NEXT"));
-            var first = true;
+        public List<Instruction> compile() {
+            var instructions = new ArrayList<Instruction>();
             for (var var : vars) {
-                if (first) first = false;
-                else node.addChild(new SimpleTreeNode(";"));
-                var id = new SimpleTreeNode("ID");
-                id.addChild(new SimpleTreeNode(var));
-                node.addChild(id);
+                instructions.add(new Next(var));
             }
-            return node;
+            return instructions;
         }
     }
 
@@ -240,52 +142,26 @@ public interface ParseTree {
             instructions.add(new PrintNewLine());
             return instructions;
         }
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("PRINT"));
-            var first = true;
-            for (var value : values) {
-                if (first) first = false;
-                else node.addChild(new SimpleTreeNode(";"));
-                node.addChild(value.makeTree());
-            }
-            return node;
-        }
     }
 
     public record ReadNode(List<String> vars) implements StatementTree {
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("READ"));
-            var first = true;
-            for (var var : vars) {
-                if (first) first = false;
-                else node.addChild(new SimpleTreeNode(";"));
-                var id = new SimpleTreeNode("ID");
-                id.addChild(new SimpleTreeNode(var));
-                node.addChild(id);
-            }
-            return node;
-        }
     }
 
     public record ReturnNode() implements StatementTree {
         @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("RETURN"));
-            return node;
+        public List<Instruction> compile() {
+            var instructions = new ArrayList<Instruction>();
+            instructions.add(new Return());
+            return instructions;
         }
     }
 
     public record StopNode() implements StatementTree {
         @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            node.addChild(new SimpleTreeNode("STOP"));
-            return node;
+        public List<Instruction> compile() {
+            var instructions = new ArrayList<Instruction>();
+            instructions.add(new End());
+            return instructions;
         }
     }
 
@@ -294,11 +170,6 @@ public interface ParseTree {
         public List<Instruction> compile() {
             return new ArrayList<Instruction>();
         }
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<statement>");
-            return node;
-        }
     }
 
     public record FunctionExpressionNode(FunctionName name, ExpressionTree argument) implements ExpressionTree, StatementTree {
@@ -319,15 +190,6 @@ public interface ParseTree {
             }));
             return instructions;
         }
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<expr>");
-            node.addChild(new SimpleTreeNode(name.name()));
-            node.addChild(new SimpleTreeNode("("));
-            node.addChild(argument.makeTree());
-            node.addChild(new SimpleTreeNode(")"));
-            return node;
-        }
     }
 
     public enum FunctionName {
@@ -355,31 +217,17 @@ public interface ParseTree {
                 case SUBTRACT -> new Subtraction();
                 case MULTIPLY -> new Multiplication();
                 case DIVIDE -> new Division();
-                default -> throw new UnsupportedOperationException();
+                case EQUALS -> new Compare(Comparison.EQUALS);
+                case DIAMOND -> new Compare(Comparison.NOT_EQUALS);
+                case LT -> new Compare(Comparison.LESS);
+                case GT -> new Compare(Comparison.GREATER);
+                case LTE -> new Compare(Comparison.LESS_EQUAL);
+                case GTE -> new Compare(Comparison.GREATER_EQUAL);
+                case AND -> new And();
+                case OR -> new Or();
             });
             return instructions;
         }
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<expr>");
-            node.addChild(left.makeTree());
-            node.addChild(new SimpleTreeNode(switch (operation) {
-                case OR -> "OR";
-                case AND -> "AND";
-                case EQUALS -> "=";
-                case DIAMOND -> "<>";
-                case LT -> "<";
-                case GT -> ">";
-                case LTE -> "<=";
-                case GTE -> ">=";
-                case ADD -> "+";
-                case SUBTRACT -> "-";
-                case MULTIPLY -> "*";
-                case DIVIDE -> "/";
-            }));
-            node.addChild(right.makeTree());
-            return node;
-        }
     }
 
     public enum BinaryOperation {
@@ -405,20 +253,10 @@ public interface ParseTree {
             var instructions = operand.compile();
             instructions.add(switch(operation){
                 case NEGATE -> new Negation();
-                default -> throw new UnsupportedOperationException();
+                case NOT -> new Not();
             });
             return instructions;
         }
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<expr>");
-            node.addChild(new SimpleTreeNode(switch(operation) {
-                case NOT -> "!";
-                case NEGATE -> "-";
-            }));
-            node.addChild(operand.makeTree());
-            return node;
-        }
     }
 
     public enum UnaryOperation {
@@ -435,12 +273,6 @@ public interface ParseTree {
             instructions.add(new GetVar(name));
             return instructions;
         }
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("<expr>");
-            node.addChild(new SimpleTreeNode(name));
-            return node;
-        }
     }
 
     public record NumberNode(double value) implements ConstantTree {
@@ -450,12 +282,6 @@ public interface ParseTree {
             instructions.add(new PushConstant(value));
             return instructions;
         }
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("Number");
-            node.addChild(new SimpleTreeNode(String.valueOf(value)));
-            return node;
-        }
     }
 
     public record StringNode(String value) implements ConstantTree {
@@ -465,12 +291,6 @@ public interface ParseTree {
             instructions.add(new PushConstant(value));
             return instructions;
         }
-        @Override
-        public TreeNode makeTree() {
-            var node = new SimpleTreeNode("String");
-            node.addChild(new SimpleTreeNode(value));
-            return node;
-        }
     }
 
 }
@@ -0,0 +1,188 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.List;
+
+import hu.webarticum.treeprinter.ListingTreePrinter;
+import hu.webarticum.treeprinter.SimpleTreeNode;
+import hu.webarticum.treeprinter.TreeNode;
+
+import static cpl_parser_project_summer_2021.parser.ParseTree.*;
+
+// Draws parse trees with tree-printer. Kept out of ParseTree so that parsing and running a program never
+// load tree-printer classes: only code that prints a tree touches this class.
+public final class ParseTreePrinter {
+
+    private ParseTreePrinter() {
+    }
+
+    // Draws tree on System.out
+    public static void print(ParseTree tree) {
+        new ListingTreePrinter().print(makeTree(tree));
+    }
+
+    public static TreeNode makeTree(ParseTree tree) {
+        if (tree instanceof LinesNode lines) {
+            var node = new SimpleTreeNode("<lines>");
+            for (var line : lines.lines()) {
+                node.addChild(makeTree(line));
+                node.addChild(new SimpleTreeNode("(new line)"));
+            }
+            return node;
+        } else if (tree instanceof LineNode line) {
+            var node = new SimpleTreeNode("<line>");
+            node.addChild(makeTree(line.number()));
+            separated(node, line.statements());
+            return node;
+        } else if (tree instanceof DataNode data) {
+            var node = statement("DATA");
+            separated(node, data.data());
+            return node;
+        } else if (tree instanceof DimNode dim) {
+            var node = statement("DIM");
+            node.addChild(id(dim.name()));
+            separated(node, dim.lengths());
+            return node;
+        } else if (tree instanceof EndNode) {
+            return statement("END");
+        } else if (tree instanceof ForNode loop) {
+            var node = statement("FOR");
+            node.addChild(id(loop.var()));
+            node.addChild(new SimpleTreeNode("="));
+            node.addChild(makeTree(loop.from()));
+            node.addChild(new SimpleTreeNode("TO"));
+            node.addChild(makeTree(loop.to()));
+            if (loop.step() != null) {
+                node.addChild(new SimpleTreeNode("STEP"));
+                node.addChild(makeTree(loop.step()));
+            }
+            return node;
+        } else if (tree instanceof GotoNode jump) {
+            var node = statement("GOTO");
+            node.addChild(makeTree(jump.destination()));
+            return node;
+        } else if (tree instanceof GosubNode call) {
+            var node = statement("GOSUB");
+            node.addChild(makeTree(call.destination()));
+            return node;
+        } else if (tree instanceof IfNode branch) {
+            var node = statement("IF");
+            node.addChild(makeTree(branch.condition()));
+            node.addChild(new SimpleTreeNode("THEN"));
+            node.addChild(makeTree(branch.destination()));
+            return node;
+        } else if (tree instanceof InputNode input) {
+            var node = statement("INPUT");
+            if (input.prompt() != null) {
+                var string = new SimpleTreeNode("String");
+                string.addChild(new SimpleTreeNode(input.prompt()));
+                node.addChild(string);
+                node.addChild(new SimpleTreeNode(";"));
+            }
+            ids(node, input.vars());
+            return node;
+        } else if (tree instanceof LetNode let) {
+            var node = statement("LET");
+            node.addChild(id(let.name()));
+            node.addChild(new SimpleTreeNode("="));
+            node.addChild(makeTree(let.value()));
+            return node;
+        } else if (tree instanceof NextNode next) {
+            var node = statement("NEXT");
+            ids(node, next.vars());
+            return node;
+        } else if (tree instanceof PrintNode print) {
+            var node = statement("PRINT");
+            separated(node, print.values());
+            return node;
+        } else if (tree instanceof ReadNode read) {
+            var node = statement("READ");
+            ids(node, read.vars());
+            return node;
+        } else if (tree instanceof ReturnNode) {
+            return statement("RETURN");
+        } else if (tree instanceof StopNode) {
+            return statement("STOP");
+        } else if (tree instanceof BlankStatementNode) {
+            return new SimpleTreeNode("<statement>");
+        } else if (tree instanceof FunctionExpressionNode function) {
+            var node = new SimpleTreeNode("<expr>");
+            node.addChild(new SimpleTreeNode(function.name().name()));
+            node.addChild(new SimpleTreeNode("("));
+            node.addChild(makeTree(function.argument()));
+            node.addChild(new SimpleTreeNode(")"));
+            return node;
+        } else if (tree instanceof BinaryExpressionNode binary) {
+            var node = new SimpleTreeNode("<expr>");
+            node.addChild(makeTree(binary.left()));
+            node.addChild(new SimpleTreeNode(switch (binary.operation()) {
+                case OR -> "OR";
+                case AND -> "AND";
+                case EQUALS -> "=";
+                case DIAMOND -> "<>";
+                case LT -> "<";
+                case GT -> ">";
+                case LTE -> "<=";
+                case GTE -> ">=";
+                case ADD -> "+";
+                case SUBTRACT -> "-";
+                case MULTIPLY -> "*";
+                case DIVIDE -> "/";
+            }));
+            node.addChild(makeTree(binary.right()));
+            return node;
+        } else if (tree instanceof UnaryExpressionNode unary) {
+            var node = new SimpleTreeNode("<expr>");
+            node.addChild(new SimpleTreeNode(switch (unary.operation()) {
+                case NOT -> "!";
+                case NEGATE -> "-";
+            }));
+            node.addChild(makeTree(unary.operand()));
+            return node;
+        } else if (tree instanceof VarNode var) {
+            var node = new SimpleTreeNode("<expr>");
+            node.addChild(new SimpleTreeNode(var.name()));
+            return node;
+        } else if (tree instanceof NumberNode number) {
+            var node = new SimpleTreeNode("Number");
+            node.addChild(new SimpleTreeNode(String.valueOf(number.value())));
+            return node;
+        } else if (tree instanceof StringNode string) {
+            var node = new SimpleTreeNode("String");
+            node.addChild(new SimpleTreeNode(string.value()));
+            return node;
+        }
+        throw new IllegalArgumentException("Cannot draw " + tree);
+    }
+
+    private static SimpleTreeNode statement(String keyword) {
+        var node = new SimpleTreeNode("<statement>");
+        node.addChild(new SimpleTreeNode(keyword));
+        return node;
+    }
+
+    private static SimpleTreeNode id(String name) {
+        var id = new SimpleTreeNode("ID");
+        id.addChild(new SimpleTreeNode(name));
+        return id;
+    }
+
+    // The children's trees with ";" between them
+    private static void separated(SimpleTreeNode node, List<? extends ParseTree> children) {
+        var first = true;
+        for (var child : children) {
+            if (first) first = false;
+            else node.addChild(new SimpleTreeNode(";"));
+            node.addChild(makeTree(child));
+        }
+    }
+
+    private static void ids(SimpleTreeNode node, List<String> names) {
+        var first = true;
+        for (var name : names) {
+            if (first) first = false;
+            else node.addChild(new SimpleTreeNode(";"));
+            node.addChild(id(name));
+        }
+    }
+
+}
@@ -1,16 +1,57 @@
 package cpl_parser_project_summer_2021.parser;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import cpl_parser_project_summer_2021.parser.Token.Keyword;
 
 import static cpl_parser_project_summer_2021.parser.ParseTree.*;
 import static cpl_parser_project_summer_2021.parser.Token.Type.*;
 
 public class Parser {
 
+    // Binding levels of the expression grammar, loosest first. NOT binds between AND and the comparisons,
+    // negation binds tighter than every binary operator.
+    private static final int OR_LEVEL = 1;
+    private static final int AND_LEVEL = 2;
+    private static final int NOT_LEVEL = 3;
+    private static final int COMPARE_LEVEL = 4;
+    private static final int ADDITION_LEVEL = 5;
+    private static final int MULTIPLICATION_LEVEL = 6;
+
+    private static final BinaryOperation[] OPERATORS = new BinaryOperation[Token.Type.values().length];
+    private static final int[] LEVELS = new int[BinaryOperation.values().length];
+
+    static {
+        LEVELS[BinaryOperation.OR.ordinal()] = OR_LEVEL;
+        LEVELS[BinaryOperation.AND.ordinal()] = AND_LEVEL;
+        operator(EQUALS, BinaryOperation.EQUALS, COMPARE_LEVEL);
+        operator(DIAMOND, BinaryOperation.DIAMOND, COMPARE_LEVEL);
+        operator(LT, BinaryOperation.LT, COMPARE_LEVEL);
+        operator(GT, BinaryOperation.GT, COMPARE_LEVEL);
+        operator(LTE, BinaryOperation.LTE, COMPARE_LEVEL);
+        operator(GTE, BinaryOperation.GTE, COMPARE_LEVEL);
+        operator(PLUS, BinaryOperation.ADD, ADDITION_LEVEL);
+        operator(MINUS, BinaryOperation.SUBTRACT, ADDITION_LEVEL);
+        operator(TIMES, BinaryOperation.MULTIPLY, MULTIPLICATION_LEVEL);
+        operator(DIVIDE, BinaryOperation.DIVIDE, MULTIPLICATION_LEVEL);
+    }
+
+    private static void operator(Token.Type type, BinaryOperation operation, int level) {
+        OPERATORS[type.ordinal()] = operation;
+        LEVELS[operation.ordinal()] = level;
+    }
+
     private Lexer lexer;
     private Token current;
+    private int line;
 
     public Parser(Lexer lexer) throws IOException, LexerException {
         this.lexer = lexer;
@@ -19,63 +60,90 @@ public class Parser {
 
     private void nextToken() throws IOException, LexerException {
         current = lexer.getNextToken();
+        line = lexer.line();
+    }
+
+    private ParserException error(String message) {
+        return new ParserException(message, line);
     }
 
     private Token eat(Token.Type type) throws IOException, LexerException, ParserException {
-        if (current.type() != type) throw new ParserException("Expected " + type);
+        if (current.type() != type) throw error("Expected " + type);
         var token = current;
         nextToken();
         return token;
     }
 
-    private Token eatKeyword(String word) throws IOException, LexerException, ParserException {
-        if (current.type() != KEYWORD && !current.lexeme().equals(word)) throw new ParserException("Expected " + word);
+    private Token eatKeyword(Keyword keyword) throws IOException, LexerException, ParserException {
+        if (current.keyword() != keyword) throw error("Expected " + keyword);
         var token = current;
         nextToken();
         return token;
     }
 
     public LinesNode parseLines() throws IOException, LexerException, ParserException {
-        var firstNumber = new NumberNode(Double.parseDouble(eat(NUMBER).lexeme()));
-        var firstStatements = parseStatements();
-        eat(NEWLINE);
-        var first = new LineNode(firstNumber, firstStatements);
-        if (current.type() != EOF) {
-            var list = new ArrayList<LineNode>();
-            list.add(first);
-            var rest = parseLines();
-            list.addAll(rest.lines());
-            return new LinesNode(list);
-        }
-        return new LinesNode(List.of(first));
+        var lines = new ArrayList<LineNode>();
+        do {
+            lines.add(parseLine());
+        } while (current.type() != EOF);
+        return new LinesNode(lines);
     }
 
-    public List<StatementTree> parseStatements() throws IOException, LexerException, ParserException {
-        var first = parseStatement();
-        switch (current.type()){
-            case COMMA, SEMI, COLON -> {
-                parseDivider();
-                var list = new ArrayList<StatementTree>();
-                list.add(first);
-                var rest = parseStatements();
-                list.addAll(rest);
-                return list;
+    // Parses one line per call to next(), so lines can be compiled and run while the rest of the source is
+    // still being read, and nothing keeps parsed lines alive. Like parseLines(), a source must hold at
+    // least one line. Errors are thrown from next() wrapped in an UncheckedParserException.
+    public Iterator<LineNode> lines() {
+        return new Iterator<>() {
+            private boolean started = false;
+
+            @Override
+            public boolean hasNext() {
+                return !started || current.type() != EOF;
             }
-            default -> {
-                return List.of(first);
+
+            @Override
+            public LineNode next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                started = true;
+                try {
+                    return parseLine();
+                } catch (IOException | LexerException | ParserException e) {
+                    throw new UncheckedParserException(e);
+                }
             }
+        };
+    }
+
+    public Stream<LineNode> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(lines(), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    public LineNode parseLine() throws IOException, LexerException, ParserException {
+        var number = new NumberNode(eat(NUMBER).value());
+        var statements = parseStatements();
+        eat(NEWLINE);
+        return new LineNode(number, statements);
+    }
+
+    public List<StatementTree> parseStatements() throws IOException, LexerException, ParserException {
+        var list = new ArrayList<StatementTree>();
+        list.add(parseStatement());
+        while (atDivider()) {
+            parseDivider();
+            list.add(parseStatement());
         }
+        return list;
     }
 
     public StatementTree parseStatement() throws IOException, LexerException, ParserException {
         if (current.type() == KEYWORD) {
-            switch (current.lexeme()) {
-                case "DATA" -> {
+            switch (current.keyword()) {
+                case DATA -> {
                     nextToken();
                     var data = parseConstantList();
                     return new DataNode(data);
                 }
-                case "DIM" -> {
+                case DIM -> {
                     nextToken();
                     var name = eat(ID).lexeme();
                     eat(LPAREN);
@@ -83,42 +151,42 @@ public class Parser {
                     eat(RPAREN);
                     return new DimNode(name, lengths);
                 }
-                case "END" -> {
+                case END -> {
                     nextToken();
                     return new EndNode();
                 }
-                case "FOR" -> {
+                case FOR -> {
                     nextToken();
                     var var = eat(ID).lexeme();
                     eat(EQUALS);
                     var from = parseExpression();
-                    eatKeyword("TO");
+                    eatKeyword(Keyword.TO);
                     var to = parseExpression();
                     ConstantTree step = null;
-                    if (current.type() == KEYWORD && "STEP".equals(current.lexeme())) {
+                    if (current.keyword() == Keyword.STEP) {
                         nextToken();
                         step = parseConstant();
                     }
                     return new ForNode(var, from, to, step);
                 }
-                case "GOTO" -> {
+                case GOTO -> {
                     nextToken();
                     var destination = parseExpression();
                     return new GotoNode(destination);
                 }
-                case "GOSUB" -> {
+                case GOSUB -> {
                     nextToken();
                     var destination = parseExpression();
                     return new GosubNode(destination);
                 }
-                case "IF" -> {
+                case IF -> {
                     nextToken();
                     var condition = parseExpression();
-                    eatKeyword("THEN");
-                    var destination = new NumberNode(Double.parseDouble(eat(NUMBER).lexeme()));
+                    eatKeyword(Keyword.THEN);
+                    var destination = new NumberNode(eat(NUMBER).value());
                     return new IfNode(condition, destination);
                 }
-                case "INPUT" -> {
+                case INPUT -> {
                     nextToken();
                     String prompt = null;
                     if (current.type() == STRING) {
@@ -129,33 +197,33 @@ public class Parser {
                     var vars = parseIdentifierList();
                     return new InputNode(prompt, vars);
                 }
-                case "LET" -> {
+                case LET -> {
                     nextToken();
                     var name = eat(ID).lexeme();
                     eat(EQUALS);
                     var value = parseExpression();
                     return new LetNode(name, value);
                 }
-                case "NEXT" -> {
+                case NEXT -> {
                     nextToken();
                     var vars = parseIdentifierList();
                     return new NextNode(vars);
                 }
-                case "PRINT" -> {
+                case PRINT -> {
                     nextToken();
                     var values = parsePrintList();
                     return new PrintNode(values);
                 }
-                case "READ" -> {
+                case READ -> {
                     nextToken();
                     var vars = parseIdentifierList();
                     return new ReadNode(vars);
                 }
-                case "RETURN" -> {
+                case RETURN -> {
                     nextToken();
                     return new ReturnNode();
                 }
-                case "STOP" -> {
+                case STOP -> {
                     nextToken();
                     return new StopNode();
                 }
@@ -171,71 +239,71 @@ public class Parser {
 
     private FunctionExpressionNode parseFunctionExpression() throws IOException, LexerException, ParserException {
         if(current.type() == KEYWORD) {
-            switch (current.lexeme()) {
-                case "ABS" -> {
+            switch (current.keyword()) {
+                case ABS -> {
                     nextToken();
                     eat(LPAREN);
                     var argument = parseAdditionExpression();
                     eat(RPAREN);
                     return new FunctionExpressionNode(FunctionName.ABS, argument);
                 }
-                case "ATN" -> {
+                case ATN -> {
                     nextToken();
                     eat(LPAREN);
                     var argument = parseAdditionExpression();
                     eat(RPAREN);
                     return new FunctionExpressionNode(FunctionName.ATN, argument);
                 }
-                case "COS" -> {
+                case COS -> {
                     nextToken();
                     eat(LPAREN);
                     var argument = parseAdditionExpression();
                     eat(RPAREN);
                     return new FunctionExpressionNode(FunctionName.COS, argument);
                 }
-                case "EXP" -> {
+                case EXP -> {
                     nextToken();
                     eat(LPAREN);
                     var argument = parseAdditionExpression();
                     eat(RPAREN);
                     return new FunctionExpressionNode(FunctionName.EXP, argument);
                 }
-                case "INT" -> {
+                case INT -> {
                     nextToken();
                     eat(LPAREN);
                     var argument = parseAdditionExpression();
                     eat(RPAREN);
                     return new FunctionExpressionNode(FunctionName.INT, argument);
                 }
-                case "LOG" -> {
+                case LOG -> {
                     nextToken();
                     eat(LPAREN);
                     var argument = parseAdditionExpression();
                     eat(RPAREN);
                     return new FunctionExpressionNode(FunctionName.LOG, argument);
                 }
-                case "RND" -> {
+                case RND -> {
                     nextToken();
                     eat(LPAREN);
-                    var argument = new NumberNode(Double.parseDouble(eat(NUMBER).lexeme()));
+                    var argument = new NumberNode(eat(NUMBER).value());
                     eat(RPAREN);
                     return new FunctionExpressionNode(FunctionName.RND, argument);
                 }
-                case "SIN" -> {
+                case SIN -> {
                     nextToken();
                     eat(LPAREN);
                     var argument = parseAdditionExpression();
                     eat(RPAREN);
                     return new FunctionExpressionNode(FunctionName.SIN, argument);
                 }
-                case "SQR" -> {
+                case SQR -> {
                     nextToken();
                     eat(LPAREN);
                     var argument = parseAdditionExpression();
                     eat(RPAREN);
                     return new FunctionExpressionNode(FunctionName.SQR, argument);
                 }
-                case "TAN" -> {
+                case TAN -> {
                     nextToken();
                     eat(LPAREN);
                     var argument = parseAdditionExpression();
@@ -244,180 +312,118 @@ public class Parser {
                 }
             }
         }
-        throw new ParserException("Expected identifier");
+        throw error("Expected identifier");
     }
 
     private List<String> parseIdentifierList() throws IOException, LexerException, ParserException {
-        var first = eat(ID).lexeme();
-        switch (current.type()){
-            case COMMA, SEMI, COLON -> {
-                parseDivider();
-                var list = new ArrayList<String>();
-                list.add(first);
-                var rest = parseIdentifierList();
-                list.addAll(rest);
-                return list;
-            }
-            default -> {
-                return List.of(first);
-            }
+        var list = new ArrayList<String>();
+        list.add(eat(ID).lexeme());
+        while (atDivider()) {
+            parseDivider();
+            list.add(eat(ID).lexeme());
         }
+        return list;
     }
 
     private List<ExpressionTree> parseValueList() throws IOException, LexerException, ParserException {
-        var first = parseValue();
-        switch (current.type()){
-            case COMMA, SEMI, COLON -> {
-                parseDivider();
-                var list = new ArrayList<ExpressionTree>();
-                list.add(first);
-                var rest = parseValueList();
-                list.addAll(rest);
-                return list;
-            }
-            default -> {
-                return List.of(first);
-            }
+        var list = new ArrayList<ExpressionTree>();
+        list.add(parseValue());
+        while (atDivider()) {
+            parseDivider();
+            list.add(parseValue());
         }
+        return list;
     }
 
     private List<ConstantTree> parseConstantList() throws IOException, LexerException, ParserException {
-        var first = parseConstant();
-        switch (current.type()){
-            case COMMA, SEMI, COLON -> {
-                parseDivider();
-                var list = new ArrayList<ConstantTree>();
-                list.add(first);
-                var rest = parseConstantList();
-                list.addAll(rest);
-                return list;
-            }
-            default -> {
-                return List.of(first);
-            }
+        var list = new ArrayList<ConstantTree>();
+        list.add(parseConstant());
+        while (atDivider()) {
+            parseDivider();
+            list.add(parseConstant());
         }
+        return list;
     }
 
     private List<NumberNode> parseNumberList() throws IOException, LexerException, ParserException {
-        var first = new NumberNode(Double.parseDouble(eat(NUMBER).lexeme()));
-        switch (current.type()){
-            case COMMA, SEMI, COLON -> {
-                parseDivider();
-                var list = new ArrayList<NumberNode>();
-                list.add(first);
-                var rest = parseNumberList();
-                list.addAll(rest);
-                return list;
-            }
-            default -> {
-                return List.of(first);
-            }
+        var list = new ArrayList<NumberNode>();
+        list.add(new NumberNode(eat(NUMBER).value()));
+        while (atDivider()) {
+            parseDivider();
+            list.add(new NumberNode(eat(NUMBER).value()));
         }
+        return list;
     }
 
     private List<ExpressionTree> parsePrintList() throws IOException, LexerException, ParserException{
-        switch (current.type()) {
-            case COMMA, SEMI, COLON, NEWLINE -> {
-                return List.of();
-            }
-        }
-        var first = parseExpression();
-        switch (current.type()){
-            case COMMA, SEMI, COLON -> {
-                parseDivider();
-                var list = new ArrayList<ExpressionTree>();
-                list.add(first);
-                var rest = parsePrintList();
-                list.addAll(rest);
-                return list;
-            }
-            default -> {
-                return List.of(first);
+        var list = new ArrayList<ExpressionTree>();
+        while (true) {
+            switch (current.type()) {
+                case COMMA, SEMI, COLON, NEWLINE -> {
+                    return list;
+                }
             }
+            list.add(parseExpression());
+            if (!atDivider()) return list;
+            parseDivider();
         }
     }
 
     private ExpressionTree parseExpression() throws IOException, LexerException, ParserException {
-        var left = parseAndExpression();
-        if (current.type() == KEYWORD && "OR".equals(current.lexeme())) {
-            nextToken();
-            var right = parseExpression();
-            return new BinaryExpressionNode(BinaryOperation.OR, left, right);
-        }
-        return left;
+        return parseExpression(OR_LEVEL);
     }
 
-    private ExpressionTree parseAndExpression() throws IOException, LexerException, ParserException {
-        var left = parseNotExpression();
-        if (current.type() == KEYWORD && "AND".equals(current.lexeme())) {
-            nextToken();
-            var right = parseAndExpression();
-            return new BinaryExpressionNode(BinaryOperation.AND, left, right);
-        }
-        return left;
+    // Function arguments stop short of comparisons and boolean operators
+    private ExpressionTree parseAdditionExpression() throws IOException, LexerException, ParserException {
+        return parseExpression(ADDITION_LEVEL);
     }
 
-    private ExpressionTree parseNotExpression() throws IOException, LexerException, ParserException {
-        if (current.type() == KEYWORD && "NOT".equals(current.lexeme())) {
+    // Precedence climbing: operators of one level are folded in a loop, so stack depth grows with
+    // parentheses and precedence levels only, never with the length of an operator chain
+    private ExpressionTree parseExpression(int level) throws IOException, LexerException, ParserException {
+        var left = parsePrefixExpression(level);
+        while (true) {
+            var operation = binaryOperation();
+            if (operation == null || LEVELS[operation.ordinal()] < level) return left;
             nextToken();
-            var operand = parseNotExpression();
-            return new UnaryExpressionNode(UnaryOperation.NOT, operand);
-        } else {
-            return parseCompareExpression();
+            var right = parseExpression(LEVELS[operation.ordinal()] + 1);
+            left = new BinaryExpressionNode(operation, left, right);
         }
     }
 
-    private ExpressionTree parseCompareExpression() throws IOException, LexerException, ParserException {
-        var left = parseAdditionExpression();
-        var operation = switch (current.type()) {
-            case EQUALS -> BinaryOperation.EQUALS;
-            case DIAMOND -> BinaryOperation.DIAMOND;
-            case LT -> BinaryOperation.LT;
-            case GT -> BinaryOperation.GT;
-            case LTE -> BinaryOperation.LTE;
-            case GTE -> BinaryOperation.GTE;
-            default -> null;
-        };
-        if (operation == null) return left;
-        nextToken();
-        var right = parseCompareExpression();
-        return new BinaryExpressionNode(operation, left, right);
-    }
-
-    private ExpressionTree parseAdditionExpression() throws IOException, LexerException, ParserException {
-        var left = parseMultiplicationExpression();
-        var operation = switch (current.type()) {
-            case PLUS -> BinaryOperation.ADD;
-            case MINUS -> BinaryOperation.SUBTRACT;
-            default -> null;
-        };
-        if (operation == null) return left;
-        nextToken();
-        var right = parseAdditionExpression();
-        return new BinaryExpressionNode(operation, left, right);
+    private ExpressionTree parsePrefixExpression(int level) throws IOException, LexerException, ParserException {
+        if (level <= NOT_LEVEL && current.keyword() == Keyword.NOT) {
+            var count = 0;
+            while (current.keyword() == Keyword.NOT) {
+                nextToken();
+                count++;
+            }
+            return wrap(UnaryOperation.NOT, parseExpression(COMPARE_LEVEL), count);
+        }
+        var count = 0;
+        while (current.type() == MINUS) {
+            nextToken();
+            count++;
+        }
+        return wrap(UnaryOperation.NEGATE, parseValue(), count);
     }
 
-    private ExpressionTree parseMultiplicationExpression() throws IOException, LexerException, ParserException {
-        var left = parseNegateExpression();
-        var operation = switch (current.type()) {
-            case TIMES -> BinaryOperation.MULTIPLY;
-            case DIVIDE -> BinaryOperation.DIVIDE;
-            default -> null;
-        };
-        if (operation == null) return left;
-        nextToken();
-        var right = parseMultiplicationExpression();
-        return new BinaryExpressionNode(operation, left, right);
+    private static ExpressionTree wrap(UnaryOperation operation, ExpressionTree operand, int count) {
+        for (var i = 0; i < count; i++) {
+            operand = new UnaryExpressionNode(operation, operand);
+        }
+        return operand;
     }
 
-    private ExpressionTree parseNegateExpression() throws IOException, LexerException, ParserException {
-        if (current.type() == MINUS) {
-            nextToken();
-            var operand = parseNegateExpression();
-            return new UnaryExpressionNode(UnaryOperation.NEGATE, operand);
-        } else {
-            return parseValue();
+    private BinaryOperation binaryOperation() {
+        if (current.type() == KEYWORD) {
+            return switch (current.keyword()) {
+                case OR -> BinaryOperation.OR;
+                case AND -> BinaryOperation.AND;
+                default -> null;
+            };
         }
+        return OPERATORS[current.type().ordinal()];
     }
 
     private ExpressionTree parseValue() throws IOException, LexerException, ParserException {
@@ -444,7 +450,7 @@ public class Parser {
 
     private ConstantTree parseConstant() throws IOException, LexerException, ParserException {
         if(current.type() == NUMBER) {
-            var value = Double.parseDouble(current.lexeme());
+            var value = current.value();
             nextToken();
             return new NumberNode(value);
         } else if (current.type() == STRING) {
@@ -452,14 +458,21 @@ public class Parser {
             nextToken();
             return new StringNode(value);
         } else {
-            throw new ParserException("Expected constant");
+            throw error("Expected constant");
         }
     }
 
+    private boolean atDivider() {
+        return switch (current.type()) {
+            case COMMA, SEMI, COLON -> true;
+            default -> false;
+        };
+    }
+
     private void parseDivider() throws IOException, LexerException, ParserException{
         switch (current.type()){
             case COMMA, SEMI, COLON -> nextToken();
-            default -> throw new ParserException("Expected divider");
+            default -> throw error("Expected divider");
         }
 
     }
@@ -2,10 +2,35 @@ package cpl_parser_project_summer_2021.parser;
 
 public class ParserException extends Exception {
 
+    // 1-based source line of the offending token, 0 when unknown
+    private final int line;
+
     public ParserException() {
+        this.line = 0;
     }
 
     public ParserException(String message) {
+        this(message, 0);
+    }
+
+    public ParserException(String message, int line) {
         super(message);
+        this.line = line;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    // The same error reported on another line, for sources parsed in slices
+    ParserException atLine(int line) {
+        var moved = new ParserException(super.getMessage(), line);
+        moved.setStackTrace(getStackTrace());
+        return moved;
+    }
+
+    @Override
+    public String getMessage() {
+        return line > 0 ? "Line " + line + ": " + super.getMessage() : super.getMessage();
     }
 }
@@ -0,0 +1,73 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static cpl_parser_project_summer_2021.parser.Instruction.*;
+
+// Merges common instruction runs into superinstructions. The patterns are the most frequent runs
+// executed by arithmetic, FOR/NEXT and IF/GOTO loop workloads:
+//  - LoadVar v; PushConstant c; Addition|Subtraction; StoreVar v        -> IncrementVar
+//  - LoadVar v; PushConstant c; Compare; IfGoto                         -> IfVarCompareGoto
+//  - PushConstant c; Addition|Subtraction|Multiplication|Division       -> OperateConstant
+//  - LoadVar v; Addition|Subtraction|Multiplication|Division            -> OperateVar
+// Runs over resolved code that still has its Line markers, so a pattern never spans two lines. The only
+// other jump targets (after FOR, GOSUB and NEXT) fall between these branch instructions and a pattern.
+final class Peephole {
+
+    static List<Instruction> optimize(List<Instruction> code) {
+        var optimized = new ArrayList<Instruction>(code.size());
+        var i = 0;
+        while (i < code.size()) {
+            var merged = merge(code, i);
+            if (merged == null) {
+                optimized.add(code.get(i++));
+            } else {
+                optimized.add(merged.instruction);
+                i += merged.length;
+            }
+        }
+        return optimized;
+    }
+
+    private record Merge(Instruction instruction, int length) {}
+
+    private static Merge merge(List<Instruction> code, int i) {
+        var first = code.get(i);
+        if (first instanceof LoadVar load && constant(code, i + 1) != null && i + 3 < code.size()) {
+            var constant = constant(code, i + 1);
+            var operation = arithmetic(code.get(i + 2));
+            if (code.get(i + 3) instanceof StoreVar store && store.slot() == load.slot()
+                    && (operation == Arithmetic.ADD || operation == Arithmetic.SUBTRACT)) {
+                var amount = operation == Arithmetic.ADD ? constant : -constant;
+                return new Merge(new IncrementVar(load.slot(), load.name(), amount), 4);
+            }
+            if (code.get(i + 2) instanceof Compare compare && code.get(i + 3) instanceof IfGoto branch) {
+                return new Merge(new IfVarCompareGoto(load.slot(), load.name(), compare.comparison(), constant, branch.line()), 4);
+            }
+        }
+        if (i + 1 < code.size()) {
+            var operation = arithmetic(code.get(i + 1));
+            if (operation != null && constant(code, i) != null) {
+                return new Merge(new OperateConstant(operation, constant(code, i)), 2);
+            }
+            if (operation != null && first instanceof LoadVar load) {
+                return new Merge(new OperateVar(operation, load.slot(), load.name()), 2);
+            }
+        }
+        return null;
+    }
+
+    private static Double constant(List<Instruction> code, int i) {
+        return i < code.size() && code.get(i) instanceof PushConstant push && push.constant() instanceof Double number ? number : null;
+    }
+
+    private static Arithmetic arithmetic(Instruction instruction) {
+        if (instruction instanceof Addition) return Arithmetic.ADD;
+        if (instruction instanceof Subtraction) return Arithmetic.SUBTRACT;
+        if (instruction instanceof Multiplication) return Arithmetic.MULTIPLY;
+        if (instruction instanceof Division) return Arithmetic.DIVIDE;
+        return null;
+    }
+
+}
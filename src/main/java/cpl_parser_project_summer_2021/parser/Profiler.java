@@ -0,0 +1,163 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Counts the instructions run and the time spent on each BASIC line of a Program, and the same per call
+// stack (the lines of the active GOSUBs, outermost first, then the current line). Pass it to
+// Program.execute(Profiler); the unprofiled dispatch loop is a separate method and does not change.
+// Time is taken with System.nanoTime whenever execution moves to another line or call depth, so a
+// line's time includes the clock reads; the instruction counts are exact.
+public final class Profiler {
+
+    // One line's totals, for hotLines()
+    public record LineProfile(int line, long instructions, long nanos) {}
+
+    private final Program program;
+    private final int[] numbers;       // line numbers, in instruction order
+    private final int[] lineOf;        // instruction index -> position in numbers
+    private final long[] instructions;
+    private final long[] nanos;
+    private final Frame root = new Frame(-1);
+
+    // What is being charged: a position in numbers, at a call depth, in a node of the call tree
+    private int line = -1;
+    private int depth = -1;
+    private Frame frame;
+    private long since;
+
+    public Profiler(Program program) {
+        this.program = program;
+        var table = program.lines();
+        var tableNumbers = table.numbers();
+        var tableIndices = table.indices();
+        var order = new Integer[tableNumbers.length];
+        for (var i = 0; i < order.length; i++) order[i] = i;
+        // lines without code share their index with the next line, which is the one that owns it
+        Arrays.sort(order, Comparator.<Integer>comparingInt(i -> tableIndices[i]).thenComparingInt(i -> tableNumbers[i]));
+        // a program without lines (only possible from hand-built instruction lists) is all line 0
+        numbers = new int[Math.max(1, order.length)];
+        for (var i = 0; i < order.length; i++) numbers[i] = tableNumbers[order[i]];
+        var size = program.code().size();
+        lineOf = new int[size];
+        var position = 0;
+        for (var pc = 0; pc < size; pc++) {
+            while (position + 1 < order.length && tableIndices[order[position + 1]] <= pc) position++;
+            lineOf[pc] = position;
+        }
+        instructions = new long[numbers.length];
+        nanos = new long[numbers.length];
+    }
+
+    Program program() {
+        return program;
+    }
+
+    // Called by Interpreter before each instruction
+    void step(int pc, int[] returns, int depth) {
+        var line = lineOf[pc];
+        if (line != this.line || depth != this.depth) switchTo(line, returns, depth);
+        instructions[line]++;
+        frame.instructions++;
+    }
+
+    private void switchTo(int line, int[] returns, int depth) {
+        var now = System.nanoTime();
+        charge(now);
+        var frame = root;
+        for (var i = 0; i < depth; i++) frame = frame.child(lineOf[returns[i] - 1]);
+        this.frame = frame.child(line);
+        this.line = line;
+        this.depth = depth;
+        since = now;
+    }
+
+    private void charge(long now) {
+        if (line < 0) return;
+        nanos[line] += now - since;
+    }
+
+    // Called by Interpreter when the program stops, normally or not
+    void stop() {
+        charge(System.nanoTime());
+        line = -1;
+        depth = -1;
+    }
+
+    // Every line that ran, the most time first
+    public List<LineProfile> hotLines() {
+        var lines = new ArrayList<LineProfile>();
+        for (var i = 0; i < numbers.length; i++) {
+            if (instructions[i] > 0) lines.add(new LineProfile(numbers[i], instructions[i], nanos[i]));
+        }
+        lines.sort(Comparator.comparingLong(LineProfile::nanos).reversed().thenComparingInt(LineProfile::line));
+        return lines;
+    }
+
+    // A table of hotLines() with each line's share of the total time
+    public String report() {
+        var lines = hotLines();
+        var total = Math.max(1, lines.stream().mapToLong(LineProfile::nanos).sum());
+        var report = new StringBuilder(String.format("%8s %14s %12s %7s%n", "line", "instructions", "ms", "time"));
+        for (var line : lines) {
+            report.append(String.format("%8d %14d %12.3f %6.1f%%%n", line.line(), line.instructions(),
+                    line.nanos() / 1e6, 100.0 * line.nanos() / total));
+        }
+        return report.toString();
+    }
+
+    // Collapsed stacks for flamegraph.pl and compatible viewers, one "30;100 42" per call stack that ran
+    // (line 100 inside a GOSUB from line 30, for 42 instructions). Weighted by instruction counts rather than
+    // time, so the graph is the same from run to run.
+    public void writeCollapsed(Writer out) throws IOException {
+        var stacks = new ArrayList<Map.Entry<String, Long>>();
+        collapse(root, "", stacks);
+        for (var stack : stacks) out.write(stack.getKey() + " " + stack.getValue() + "\n");
+        out.flush();
+    }
+
+    public void writeCollapsed(Path file) {
+        try (var out = Files.newBufferedWriter(file)) {
+            writeCollapsed(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void collapse(Frame frame, String prefix, List<Map.Entry<String, Long>> stacks) {
+        var children = new ArrayList<>(frame.children.values());
+        children.sort(Comparator.comparingInt(child -> numbers[child.line]));
+        for (var child : children) {
+            var stack = prefix + numbers[child.line];
+            if (child.instructions > 0) stacks.add(Map.entry(stack, child.instructions));
+            collapse(child, stack + ";", stacks);
+        }
+    }
+
+    // A node of the call tree: a line, reached through the GOSUBs on the path from the root
+    private static final class Frame {
+
+        final int line;
+        final HashMap<Integer, Frame> children = new HashMap<>();
+        long instructions;
+
+        Frame(int line) {
+            this.line = line;
+        }
+
+        Frame child(int line) {
+            return children.computeIfAbsent(line, Frame::new);
+        }
+
+    }
+
+}
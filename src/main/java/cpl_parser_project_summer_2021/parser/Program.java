@@ -0,0 +1,174 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static cpl_parser_project_summer_2021.parser.Instruction.*;
+
+// Compiled instructions after linking:
+//  - every variable name is given a fixed slot and each GetVar/SetVar becomes a LoadVar/StoreVar on it
+//  - Function(RND) becomes RandomNumber, which draws from the run's RandomSource
+//  - Line markers are dropped and recorded in a LineTable of line number -> instruction index
+//  - GOTO, GOSUB and IF to a constant line become Jump, Call and JumpIf on an instruction index
+//  - FOR and NEXT become ForLoop and NextLoop on the counter's slot, FOR knowing where its loop ends
+//  - unless switched off (for A/B runs), Peephole merges common runs into superinstructions
+// so running the program never hashes a name or searches for a line.
+public final class Program implements Executable {
+
+    private final Instruction[] code;
+    private final boolean[] branches;
+    private final List<String> variables;
+    private final LineTable lines;
+
+    private Program(Instruction[] code, List<String> variables, LineTable lines) {
+        this.code = code;
+        branches = new boolean[code.length];
+        for (var i = 0; i < code.length; i++) branches[i] = code[i] instanceof Branch;
+        this.variables = variables;
+        this.lines = lines;
+    }
+
+    public static Program link(List<Instruction> instructions) {
+        return link(instructions, true);
+    }
+
+    public static Program link(List<Instruction> instructions, boolean peephole) {
+        return link(instructions, new Variables(), peephole);
+    }
+
+    // Links against the slots already in symbols, adding any new names to it
+    static Program link(List<Instruction> instructions, Variables symbols, boolean peephole) {
+        var code = new ArrayList<Instruction>(instructions.size());
+        var numbers = new ArrayList<Integer>();
+        var starts = new ArrayList<Integer>();
+        var resolved = resolve(instructions, symbols);
+        if (peephole) resolved = Peephole.optimize(resolved);
+        for (var instruction : resolved) {
+            if (instruction instanceof Line line) {
+                numbers.add(line.number());
+                starts.add(code.size());
+            } else {
+                code.add(instruction);
+            }
+        }
+        var lines = new LineTable(numbers.stream().mapToInt(Integer::intValue).toArray(),
+                starts.stream().mapToInt(Integer::intValue).toArray());
+
+        // Jumps to missing lines go to a Fail placed after the program, behind an End
+        var failures = new LinkedHashMap<String, Integer>();
+        for (var i = 0; i < code.size(); i++) {
+            var instruction = code.get(i);
+            if (instruction instanceof Goto jump) {
+                code.set(i, new Jump(target(lines, jump.line(), code.size(), failures)));
+            } else if (instruction instanceof Gosub call) {
+                code.set(i, new Call(target(lines, call.line(), code.size(), failures)));
+            } else if (instruction instanceof IfGoto branch) {
+                code.set(i, new JumpIf(target(lines, branch.line(), code.size(), failures)));
+            } else if (instruction instanceof IfVarCompareGoto branch) {
+                var target = target(lines, branch.line(), code.size(), failures);
+                code.set(i, new JumpIfVarCompare(branch.slot(), branch.name(), branch.comparison(), branch.constant(), target));
+            } else if (instruction instanceof For loop) {
+                var exit = matchingNext(code, i, loop.name());
+                if (exit < 0) exit = fail("FOR " + loop.name() + " without NEXT", code.size(), failures);
+                code.set(i, new ForLoop(symbols.slot(loop.name()), loop.name(), loop.step(), exit));
+            }
+        }
+        for (var i = 0; i < code.size(); i++) {
+            if (code.get(i) instanceof Next next) code.set(i, new NextLoop(symbols.slot(next.name()), next.name()));
+        }
+        if (!failures.isEmpty()) {
+            code.add(new End());
+            for (var message : failures.keySet()) code.add(new Fail(message));
+        }
+        return new Program(code.toArray(Instruction[]::new), symbols.names(), lines);
+    }
+
+    private static int target(LineTable lines, int line, int size, LinkedHashMap<String, Integer> failures) {
+        var target = lines.index(line);
+        return target >= 0 ? target : fail("Undefined line " + line, size, failures);
+    }
+
+    private static int fail(String message, int size, LinkedHashMap<String, Integer> failures) {
+        return failures.computeIfAbsent(message, m -> size + 1 + failures.size());
+    }
+
+    // Index just past the first NEXT on name after the FOR at index, or -1 if there is none
+    private static int matchingNext(List<Instruction> code, int index, String name) {
+        for (var i = index + 1; i < code.size(); i++) {
+            if (code.get(i) instanceof Next next && next.name().equals(name)) return i + 1;
+        }
+        return -1;
+    }
+
+    // Rewrites named variable accesses to slot accesses, allocating slots in symbols as names are met, and
+    // RND to the instruction that draws from the run's RandomSource
+    static List<Instruction> resolve(List<Instruction> instructions, Variables symbols) {
+        var resolved = new ArrayList<Instruction>(instructions.size());
+        for (var instruction : instructions) {
+            if (instruction instanceof GetVar get) {
+                resolved.add(new LoadVar(symbols.slot(get.name()), get.name()));
+            } else if (instruction instanceof SetVar set) {
+                resolved.add(new StoreVar(symbols.slot(set.name()), set.name()));
+            } else if (instruction instanceof LoadVar load) {
+                resolved.add(new LoadVar(symbols.slot(load.name()), load.name()));
+            } else if (instruction instanceof StoreVar store) {
+                resolved.add(new StoreVar(symbols.slot(store.name()), store.name()));
+            } else if (instruction instanceof Function function && function.name() == FunctionName.RND) {
+                resolved.add(new RandomNumber());
+            } else {
+                resolved.add(instruction);
+            }
+        }
+        return resolved;
+    }
+
+    public List<Instruction> code() {
+        return List.of(code);
+    }
+
+    // Variable names by slot
+    public List<String> variables() {
+        return variables;
+    }
+
+    public LineTable lines() {
+        return lines;
+    }
+
+    @Override
+    public Variables execute(Output output, RandomSource random) {
+        var vars = new Variables(variables);
+        execute(vars, 0, output, random);
+        return vars;
+    }
+
+    // Runs the program on the profiler's counters; see Profiler
+    public Variables execute(Profiler profiler) {
+        return execute(profiler, Output.standard());
+    }
+
+    public Variables execute(Profiler profiler, Output output) {
+        return execute(profiler, output, new RandomSource());
+    }
+
+    public Variables execute(Profiler profiler, Output output, RandomSource random) {
+        if (profiler.program() != this) throw new IllegalArgumentException("Profiler was made for another program");
+        var vars = new Variables(variables);
+        try {
+            new Interpreter(new OperandStack(), vars, lines, output, random).run(code, branches, 0, profiler);
+        } finally {
+            output.flush();
+        }
+        return vars;
+    }
+
+    void execute(Variables vars, int pc, Output output, RandomSource random) {
+        try {
+            new Interpreter(new OperandStack(), vars, lines, output, random).run(code, branches, pc);
+        } finally {
+            output.flush();
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import static cpl_parser_project_summer_2021.parser.ParseTree.*;
+
+// Compiled programs by content: the key is a SHA-256 of the source bytes and the enabled keywords, so the
+// same script sent again is neither lexed, parsed nor compiled. Compiled programs are immutable and can be
+// shared (see Session). At most maxEntries programs and maxWeight source bytes are kept; the least
+// recently used are evicted first. Concurrent requests for a script being compiled wait for that
+// compilation instead of starting their own. Sources that fail to parse are not cached.
+public final class ProgramCache {
+
+    // hits: served without compiling, including requests that waited for another thread's compilation
+    public record Stats(long hits, long misses, long evictions, int entries, long weight) {}
+
+    private record Entry(Executable program, long weight) {}
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final Function<LinesNode, Executable> compiler;
+
+    // Guarded by this
+    private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<ByteBuffer, CompletableFuture<Executable>> compiling = new HashMap<>();
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // Folds constants and compiles with JitCompiler, falling back to the interpreter
+    public ProgramCache(int maxEntries, long maxWeight) {
+        this(maxEntries, maxWeight, tree -> JitCompiler.compileOrInterpret(Program.link(new ConstantFolder().fold(tree).compile())));
+    }
+
+    public ProgramCache(int maxEntries, long maxWeight, Function<LinesNode, Executable> compiler) {
+        if (maxEntries < 1 || maxWeight < 1) throw new IllegalArgumentException("Cache limits must be positive");
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.compiler = compiler;
+    }
+
+    public Executable get(ByteBuffer source) throws IOException, LexerException, ParserException {
+        return get(source, Lexer.ALL_KEYWORDS);
+    }
+
+    // The program compiled from the bytes between source's position and limit, lexed with keywords
+    public Executable get(ByteBuffer source, Set<String> keywords) throws IOException, LexerException, ParserException {
+        var key = key(source, keywords);
+        CompletableFuture<Executable> pending;
+        synchronized (this) {
+            var entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                return entry.program();
+            }
+            pending = compiling.get(key);
+            if (pending != null) {
+                hits++;
+            } else {
+                misses++;
+                compiling.put(key, new CompletableFuture<>());
+            }
+        }
+        return pending != null ? await(pending) : compile(key, source, keywords);
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, entries.size(), weight);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    private Executable compile(ByteBuffer key, ByteBuffer source, Set<String> keywords)
+            throws IOException, LexerException, ParserException {
+        CompletableFuture<Executable> pending;
+        try {
+            var program = compiler.apply(new Parser(new Lexer(source, keywords)).parseLines());
+            synchronized (this) {
+                pending = compiling.remove(key);
+                var entry = new Entry(program, source.remaining());
+                entries.put(key, entry);
+                weight += entry.weight();
+                evict();
+            }
+            pending.complete(program);
+            return program;
+        } catch (IOException | LexerException | ParserException | RuntimeException | Error e) {
+            synchronized (this) {
+                pending = compiling.remove(key);
+            }
+            pending.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    // Drops least recently used entries until both limits hold; a program heavier than maxWeight on its
+    // own is still returned to its caller, but not kept
+    private void evict() {
+        var eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries || weight > maxWeight) {
+            weight -= eldest.next().getValue().weight();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static Executable await(CompletableFuture<Executable> pending) throws IOException, LexerException, ParserException {
+        try {
+            return pending.join();
+        } catch (CompletionException e) {
+            var cause = e.getCause();
+            if (cause instanceof IOException io) throw io;
+            if (cause instanceof LexerException lexer) throw lexer;
+            if (cause instanceof ParserException parser) throw parser;
+            if (cause instanceof RuntimeException runtime) throw runtime;
+            if (cause instanceof Error error) throw error;
+            throw e;
+        }
+    }
+
+    // SHA-256 of the enabled keywords, as a fixed-size bit set so that they cannot run into the source, then
+    // the source. Names that are not keywords are ignored by Lexer, so they do not change the key.
+    private static ByteBuffer key(ByteBuffer source, Set<String> keywords) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            var enabled = new byte[(Token.Keyword.values().length + 7) / 8];
+            for (var keyword : Token.Keyword.values()) {
+                if (keywords.contains(keyword.name())) enabled[keyword.ordinal() / 8] |= 1 << keyword.ordinal() % 8;
+            }
+            digest.update(enabled);
+            digest.update(source.duplicate());
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
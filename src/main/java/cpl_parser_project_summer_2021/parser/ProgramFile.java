@@ -0,0 +1,233 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static cpl_parser_project_summer_2021.parser.Instruction.*;
+
+// Bytecode saved to a file, so a program can be run without the Lexer, Parser or compiler. Big-endian:
+//   magic "CPLB", format version
+//   max stack depth, code (one int per instruction), numbers, strings, variable names
+//   FOR loops, increments, fused compare-and-branches (the operands Bytecode keeps outside the code)
+//   line table: numbers and instruction indices
+// Arrays are an int count followed by the elements; a string is an int byte count followed by UTF-8.
+// Files are read through a memory-mapped FileChannel. A file written with another VERSION is rejected:
+// opcodes and operands change meaning between versions. Every operand is checked against the table it
+// indexes and every jump target against the code, and the stack is checked to never underflow, to fit
+// the stated depth and to be empty wherever execution jumps from or to, so a damaged file fails to read
+// rather than to run.
+public final class ProgramFile {
+
+    static final int MAGIC = 'C' << 24 | 'P' << 16 | 'L' << 8 | 'B';
+    static final int VERSION = 1;
+
+    private static final Comparison[] COMPARISONS = Comparison.values();
+    private static final int FUNCTIONS = FunctionName.values().length;
+
+    private ProgramFile() {
+    }
+
+    public static void write(Bytecode program, Path file) throws IOException {
+        var out = new Encoder();
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(program.maxStack);
+        out.putInt(program.code.length);
+        for (var word : program.code) out.putInt(word);
+        out.putInt(program.numbers.length);
+        for (var number : program.numbers) out.putDouble(number);
+        out.putStrings(program.strings);
+        out.putStrings(program.variables);
+        out.putInt(program.loops.length);
+        for (var loop : program.loops) {
+            out.putInt(loop.slot());
+            out.putString(loop.name());
+            out.putDouble(loop.step());
+            out.putInt(loop.exit());
+        }
+        out.putInt(program.increments.length);
+        for (var increment : program.increments) {
+            out.putInt(increment.slot());
+            out.putString(increment.name());
+            out.putDouble(increment.amount());
+        }
+        out.putInt(program.compares.length);
+        for (var compare : program.compares) {
+            out.putInt(compare.slot());
+            out.putString(compare.name());
+            out.putInt(compare.comparison().ordinal());
+            out.putDouble(compare.constant());
+            out.putInt(compare.target());
+        }
+        var numbers = program.lines.numbers();
+        out.putInt(numbers.length);
+        for (var number : numbers) out.putInt(number);
+        for (var index : program.lines.indices()) out.putInt(index);
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var bytes = out.buffer.flip();
+            while (bytes.hasRemaining()) channel.write(bytes);
+        }
+    }
+
+    public static Bytecode read(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException(file + " is too large to be a compiled program");
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Reads the program between source's position and limit, without modifying source
+    public static Bytecode read(ByteBuffer source) throws IOException {
+        var in = source.duplicate();
+        try {
+            if (in.remaining() < 8 || in.getInt() != MAGIC) throw new IOException("Not a compiled BASIC program");
+            var version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("Compiled program has format version " + version + ", this interpreter reads version " + VERSION);
+            }
+            var maxStack = in.getInt();
+            if (maxStack < 0) throw new IOException("Bad stack depth " + maxStack);
+            var code = new int[count(in, 4)];
+            for (var i = 0; i < code.length; i++) {
+                code[i] = in.getInt();
+                if ((code[i] & Bytecode.OPCODE_MASK) >= Bytecode.OPCODES) throw new IOException("Bad opcode at instruction " + i);
+            }
+            var numbers = new double[count(in, 8)];
+            for (var i = 0; i < numbers.length; i++) numbers[i] = in.getDouble();
+            var strings = getStrings(in);
+            var variables = getStrings(in);
+            var loops = new ForLoop[count(in, 20)];
+            for (var i = 0; i < loops.length; i++) {
+                loops[i] = new ForLoop(check(in.getInt(), variables.length, "variable slot"), getString(in), in.getDouble(),
+                        check(in.getInt(), code.length + 1, "jump target"));
+            }
+            var increments = new IncrementVar[count(in, 16)];
+            for (var i = 0; i < increments.length; i++) {
+                increments[i] = new IncrementVar(check(in.getInt(), variables.length, "variable slot"), getString(in), in.getDouble());
+            }
+            var compares = new JumpIfVarCompare[count(in, 24)];
+            for (var i = 0; i < compares.length; i++) {
+                var slot = check(in.getInt(), variables.length, "variable slot");
+                var name = getString(in);
+                var comparison = check(in.getInt(), COMPARISONS.length, "comparison");
+                compares[i] = new JumpIfVarCompare(slot, name, COMPARISONS[comparison], in.getDouble(),
+                        check(in.getInt(), code.length + 1, "jump target"));
+            }
+            var lineNumbers = new int[count(in, 8)];
+            var lineIndices = new int[lineNumbers.length];
+            for (var i = 0; i < lineNumbers.length; i++) lineNumbers[i] = in.getInt();
+            for (var i = 0; i < lineIndices.length; i++) lineIndices[i] = check(in.getInt(), code.length + 1, "line index");
+            if (in.hasRemaining()) throw new IOException("Unexpected data after the compiled program");
+            // stack depth before each instruction, in code order; the same bound Bytecode.assemble computes
+            var depths = new int[code.length + 1];
+            for (var i = 0; i < code.length; i++) {
+                var opcode = code[i] & Bytecode.OPCODE_MASK;
+                if (depths[i] < Bytecode.stackInputs(opcode)) throw new IOException("Stack underflow at instruction " + i);
+                depths[i + 1] = depths[i] + Bytecode.stackEffect(opcode);
+                if (depths[i + 1] > maxStack) throw new IOException("Stack depth " + maxStack + " is too small");
+                if (Bytecode.branches(opcode) && depths[i + 1] != 0) {
+                    throw new IOException("Jump with values on the stack at instruction " + i);
+                }
+                var limit = switch (opcode) {
+                    case Bytecode.FUNCTION -> FUNCTIONS;
+                    case Bytecode.COMPARE -> COMPARISONS.length;
+                    case Bytecode.SET_VAR, Bytecode.GET_VAR, Bytecode.NEXT, Bytecode.ADD_VAR, Bytecode.SUBTRACT_VAR,
+                            Bytecode.MULTIPLY_VAR, Bytecode.DIVIDE_VAR -> variables.length;
+                    case Bytecode.PUSH_NUMBER, Bytecode.ADD_CONSTANT, Bytecode.SUBTRACT_CONSTANT, Bytecode.MULTIPLY_CONSTANT,
+                            Bytecode.DIVIDE_CONSTANT -> numbers.length;
+                    case Bytecode.PUSH_STRING, Bytecode.FAIL -> strings.length;
+                    case Bytecode.JUMP, Bytecode.JUMP_IF, Bytecode.CALL -> code.length + 1;
+                    case Bytecode.FOR -> loops.length;
+                    case Bytecode.INCREMENT_VAR -> increments.length;
+                    case Bytecode.JUMP_IF_VAR_COMPARE -> compares.length;
+                    default -> 1;
+                };
+                if (code[i] >>> Bytecode.OPCODE_BITS >= limit) throw new IOException("Bad operand at instruction " + i);
+            }
+            // every place execution can jump to starts a statement, with an empty stack
+            for (var word : code) {
+                var opcode = word & Bytecode.OPCODE_MASK;
+                if (opcode == Bytecode.JUMP || opcode == Bytecode.JUMP_IF || opcode == Bytecode.CALL) {
+                    checkTarget(depths, word >>> Bytecode.OPCODE_BITS);
+                }
+            }
+            for (var loop : loops) checkTarget(depths, loop.exit());
+            for (var compare : compares) checkTarget(depths, compare.target());
+            for (var index : lineIndices) checkTarget(depths, index);
+            return new Bytecode(code, numbers, strings, variables, loops, increments, compares,
+                    new LineTable(lineNumbers, lineIndices), maxStack);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Compiled program is truncated", e);
+        }
+    }
+
+    // An array length, checked against what is left so that a corrupt count cannot allocate a huge array
+    private static int count(ByteBuffer in, int minimumElementSize) throws IOException {
+        var count = in.getInt();
+        if (count < 0 || (long) count * minimumElementSize > in.remaining()) throw new IOException("Compiled program is truncated");
+        return count;
+    }
+
+    // value, if it indexes a table of the given size
+    private static int check(int value, int size, String what) throws IOException {
+        if (value < 0 || value >= size) throw new IOException("Bad " + what + " " + value);
+        return value;
+    }
+
+    private static void checkTarget(int[] depths, int target) throws IOException {
+        if (depths[target] != 0) throw new IOException("Jump into the middle of a statement at instruction " + target);
+    }
+
+    private static String getString(ByteBuffer in) throws IOException {
+        var bytes = new byte[count(in, 1)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String[] getStrings(ByteBuffer in) throws IOException {
+        var strings = new String[count(in, 4)];
+        for (var i = 0; i < strings.length; i++) strings[i] = getString(in);
+        return strings;
+    }
+
+    // A growable big-endian buffer
+    private static final class Encoder {
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        void putInt(int value) {
+            ensure(4).putInt(value);
+        }
+
+        void putDouble(double value) {
+            ensure(8).putDouble(value);
+        }
+
+        void putString(String value) {
+            var bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            ensure(bytes.length).put(bytes);
+        }
+
+        void putStrings(String[] values) {
+            putInt(values.length);
+            for (var value : values) putString(value);
+        }
+
+        private ByteBuffer ensure(int size) {
+            if (buffer.remaining() < size) {
+                var larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+                buffer = larger.put(buffer.flip());
+            }
+            return buffer;
+        }
+
+    }
+
+}
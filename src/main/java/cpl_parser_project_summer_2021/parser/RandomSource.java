@@ -0,0 +1,57 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.SplittableRandom;
+
+// The generator behind RND. Each run owns one, so RND neither allocates nor reseeds per call, and a run
+// given a seeded source is reproducible. split() hands out independent streams for runs in parallel.
+// With a buffer size, values are drawn in batches into a double[] and RND just reads the next one; the
+// values are the same as without the buffer.
+public final class RandomSource {
+
+    private final SplittableRandom random;
+    private final double[] buffer;
+    private int position;
+
+    // Seeded from the clock and the previous source, as new SplittableRandom() is
+    public RandomSource() {
+        this(new SplittableRandom(), 0);
+    }
+
+    public RandomSource(long seed) {
+        this(new SplittableRandom(seed), 0);
+    }
+
+    public RandomSource(long seed, int bufferSize) {
+        this(new SplittableRandom(seed), bufferSize);
+    }
+
+    private RandomSource(SplittableRandom random, int bufferSize) {
+        if (bufferSize < 0) throw new IllegalArgumentException("bufferSize must not be negative");
+        this.random = random;
+        buffer = bufferSize == 0 ? null : new double[bufferSize];
+        position = bufferSize;
+    }
+
+    // A new source, independent of this one, with the same buffer size
+    public RandomSource split() {
+        return new RandomSource(random.split(), buffer == null ? 0 : buffer.length);
+    }
+
+    // RND(argument): a whole number from 0 up to, but not including, (int) argument
+    public double next(double argument) {
+        var bound = (int) argument;
+        if (bound <= 0) throw new IllegalArgumentException("RND needs a bound of at least 1, not " + argument);
+        return (int) (uniform() * bound);
+    }
+
+    // Uniform in [0, 1)
+    private double uniform() {
+        if (buffer == null) return random.nextDouble();
+        if (position == buffer.length) {
+            for (var i = 0; i < buffer.length; i++) buffer[i] = random.nextDouble();
+            position = 0;
+        }
+        return buffer[position++];
+    }
+
+}
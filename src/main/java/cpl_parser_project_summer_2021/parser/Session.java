@@ -0,0 +1,48 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+// One run of a compiled program. Every Executable is immutable once built, and everything a run changes
+// (operand stack, variables, GOSUB and FOR stacks) is created by execute() on the thread that runs it, so
+// one program, compiled once, can be shared by any number of sessions running at the same time. A session
+// owns its Output and RandomSource, which are not thread-safe, so it must not be run twice at once.
+public final class Session {
+
+    private final Executable program;
+    private final Output output;
+    private final RandomSource random;
+
+    public Session(Executable program, Output output, RandomSource random) {
+        this.program = program;
+        this.output = output;
+        this.random = random;
+    }
+
+    // Printing to target, with a randomly seeded RandomSource
+    public Session(Executable program, Appendable target) {
+        this(program, new Output(target), new RandomSource());
+    }
+
+    // Runs the program on the calling thread and returns its variables
+    public Variables run() {
+        return program.execute(output, random);
+    }
+
+    // Runs the program on executor; the future fails with the program's exception if the run does
+    public CompletableFuture<Variables> start(Executor executor) {
+        return CompletableFuture.supplyAsync(this::run, executor);
+    }
+
+    // Starts one session per target. Their RandomSources are split from random in the order of targets,
+    // so a batch started from a seeded source draws the same numbers whichever thread runs which session.
+    public static List<CompletableFuture<Variables>> startAll(Executable program, List<? extends Appendable> targets,
+            RandomSource random, Executor executor) {
+        var runs = new ArrayList<CompletableFuture<Variables>>(targets.size());
+        for (var target : targets) runs.add(new Session(program, new Output(target), random.split()).start(executor));
+        return runs;
+    }
+
+}
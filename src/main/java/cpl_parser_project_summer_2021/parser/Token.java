@@ -9,7 +9,12 @@
 
 package cpl_parser_project_summer_2021.parser;
 
-public record Token(String lexeme, Type type) {
+// keyword is set only for KEYWORD tokens; value holds the parsed literal of a NUMBER token and is 0 otherwise
+public record Token(String lexeme, Type type, Keyword keyword, double value) {
+
+  public Token(String lexeme, Type type) {
+    this(lexeme, type, type == Type.KEYWORD ? Keyword.valueOf(lexeme) : null, type == Type.NUMBER ? Double.parseDouble(lexeme) : 0);
+  }
   
   public enum Type {
     
@@ -43,5 +48,41 @@ public record Token(String lexeme, Type type) {
     EOF
     
   }
+
+  public enum Keyword {
+
+    CLOSE,
+    DATA,
+    DIM,
+    END,
+    FOR,
+    GOTO,
+    GOSUB,
+    IF,
+    INPUT,
+    LET,
+    NEXT,
+    PRINT,
+    READ,
+    RETURN,
+    STOP,
+    TO,
+    STEP,
+    THEN,
+    ABS,
+    ATN,
+    COS,
+    EXP,
+    INT,
+    LOG,
+    RND,
+    SIN,
+    SQR,
+    TAN,
+    AND,
+    OR,
+    NOT
+
+  }
   
 }
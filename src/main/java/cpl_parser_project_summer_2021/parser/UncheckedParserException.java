@@ -0,0 +1,17 @@
+package cpl_parser_project_summer_2021.parser;
+
+// Carries an IOException, LexerException or ParserException out of APIs that cannot throw checked
+// exceptions, such as the Iterator and Stream returned by Parser.lines() and Parser.stream()
+public class UncheckedParserException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UncheckedParserException(Exception cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized Exception getCause() {
+        return (Exception) super.getCause();
+    }
+}
@@ -0,0 +1,80 @@
+package cpl_parser_project_summer_2021.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// BASIC variables in flat arrays indexed by slot, laid out like OperandStack: a double lane and a
+// reference lane that is null while the variable holds a number. Slots are handed out per name by
+// slot(), normally once at link time; an unset variable reads as 0.
+public final class Variables {
+
+    private final ArrayList<String> names = new ArrayList<>();
+    private final HashMap<String, Integer> slots = new HashMap<>();
+    double[] numbers;
+    Object[] references;
+
+    public Variables() {
+        this(List.of());
+    }
+
+    public Variables(List<String> names) {
+        numbers = new double[Math.max(8, names.size())];
+        references = new Object[numbers.length];
+        for (var name : names) slot(name);
+    }
+
+    // Slot of name, allocating the next free one the first time the name is seen
+    public int slot(String name) {
+        var slot = slots.get(name);
+        if (slot != null) return slot;
+        if (names.size() == numbers.length) {
+            numbers = Arrays.copyOf(numbers, numbers.length * 2);
+            references = Arrays.copyOf(references, numbers.length);
+        }
+        names.add(name);
+        slots.put(name, names.size() - 1);
+        return names.size() - 1;
+    }
+
+    public void load(int slot, OperandStack stack) {
+        if (references[slot] == null) stack.pushNumber(numbers[slot]);
+        else stack.pushReference(references[slot]);
+    }
+
+    public void store(int slot, OperandStack stack) {
+        if (stack.isNumber()) {
+            numbers[slot] = stack.popNumber();
+            references[slot] = null;
+        } else {
+            references[slot] = stack.popReference();
+        }
+    }
+
+    // Value of the variable called name: a Double, a String, or null if the program never mentions it
+    public Object get(String name) {
+        var slot = slots.get(name);
+        if (slot == null) return null;
+        return references[slot] == null ? (Object) numbers[slot] : references[slot];
+    }
+
+    public List<String> names() {
+        return List.copyOf(names);
+    }
+
+    // Debugging view: every variable by name, in slot order
+    public Map<String, Object> toMap() {
+        var map = new LinkedHashMap<String, Object>();
+        for (var name : names) map.put(name, get(name));
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+
+}
@@ -1,7 +1,10 @@
 package cpl_parser_project_summer_2021.parser;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Map;
+
 import org.junit.Test;
 
 /**
@@ -17,4 +20,29 @@ public class AppTest
     {
         assertTrue( true );
     }
+
+    @Test
+    public void optionsAreParsed()
+    {
+        assertEquals(Map.of("PROGRAM", "game.bas", "--seed", "7", "--tree", ""),
+                App.options(new String[] { "--seed", "7", "game.bas", "--tree" }));
+    }
+
+    @Test
+    public void badCommandLinesAreRejected()
+    {
+        assertEquals("--run needs a value", failure("game.bas", "--run"));
+        assertEquals("Unknown option --trees", failure("--trees", "game.bas"));
+        assertEquals("--seed needs a whole number, not x", failure("--seed", "x"));
+    }
+
+    private static String failure(String... args)
+    {
+        try {
+            App.options(args);
+            throw new AssertionError("Expected " + String.join(" ", args) + " to be rejected");
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
 }
@@ -0,0 +1,221 @@
+package cpl_parser_project_summer_2021.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+// Every backend runs the same programs and has to print the same thing; a run that fails adds the
+// exception's message to its output
+public class ConformanceTest
+{
+    private static final Map<String, Function<ParseTree.LinesNode, Executable>> BACKENDS = new LinkedHashMap<>();
+
+    static {
+        BACKENDS.put("records", tree -> Program.link(tree.compile(), true));
+        BACKENDS.put("records without peephole", tree -> Program.link(tree.compile(), false));
+        BACKENDS.put("bytecode", tree -> Bytecode.assemble(tree.compile()));
+        BACKENDS.put("closures", ClosureCompiler::compileOrInterpret);
+        BACKENDS.put("jit", tree -> JitCompiler.compileOrInterpret(Program.link(tree.compile())));
+    }
+
+    private static final String[][] PROGRAMS = {
+        { "10 LET A = 5\n"
+                + "20 LET B = A - INT (A/2) * 2\n"
+                + "30 PRINT B, -A * 3 / 4, \"done\"\n"
+                + "40 LET C = SQR(16) + ABS(-2) - 10 - 2\n"
+                + "50 PRINT C\n"
+                + "60 END\n"
+                + "70 PRINT \"unreachable\"\n",
+            "1.0 -3.75 done \n-6.0 \n" },
+        { "10 LET B = A + 1\n20 PRINT A, B\n",
+            "0.0 1.0 \n" },
+        { "10 LET I = 1\n"
+                + "20 LET S = 0\n"
+                + "30 GOSUB 100\n"
+                + "40 LET I = I + 1\n"
+                + "50 IF I <= 5 AND NOT I = 0 THEN 30\n"
+                + "60 PRINT S\n"
+                + "70 GOTO 40 + 50\n"
+                + "80 PRINT \"skipped\"\n"
+                + "90 PRINT \"computed\"\n"
+                + "95 END\n"
+                + "100 LET S = S + I\n"
+                + "110 RETURN\n",
+            "15.0 \ncomputed \n" },
+        { "10 LET S = 0\n"
+                + "20 FOR I = 1 TO 3\n"
+                + "30 FOR J = 1 TO I\n"
+                + "40 LET S = S + J\n"
+                + "50 NEXT J, I\n"
+                + "60 FOR K = 5 TO 1\n"
+                + "70 PRINT \"never\"\n"
+                + "80 NEXT K\n"
+                + "90 FOR X = 0 TO 1 STEP 0.25 : LET C = C + 1 : NEXT X\n"
+                + "100 PRINT S, I, K, C\n",
+            "10.0 4.0 5.0 5.0 \n" },
+        { "10 LET I = 0\n"
+                + "20 LET I = I + 1\n"
+                + "30 LET S = S * 2 - I / 4 + I\n"
+                + "40 IF I < 10 THEN 20\n"
+                + "50 LET I = I - 0.5\n"
+                + "60 PRINT I, S\n",
+            "9.5 1527.0 \n" },
+        { "10 PRINT 1 < 2, 2 <= 2, 3 > 4, 4 >= 5, 5 = 5, 5 <> 5\n"
+                + "20 PRINT \"a\" < \"b\", \"a\" = \"b\", 1 OR 0, 0 AND 1, NOT 2\n"
+                + "30 PRINT 1 / 0, -1 / 0, 0 / 0 = 0 / 0\n",
+            "1.0 1.0 0.0 0.0 1.0 0.0 \n1.0 0.0 1.0 0.0 0.0 \nInfinity -Infinity 0.0 \n" },
+        { "10 FOR N = 1 TO 3\n"
+                + "20 GOSUB 40 + N * 10\n"
+                + "30 NEXT N\n"
+                + "35 STOP\n"
+                + "50 PRINT \"one\"\n"
+                + "55 RETURN\n"
+                + "60 PRINT \"two\"\n"
+                + "65 RETURN\n"
+                + "70 PRINT \"three\"\n"
+                + "75 RETURN\n",
+            "one \ntwo \nthree \n" },
+        { "10 PRINT \"before\"\n20 GOTO 99\n",
+            "before \nUndefined line 99" },
+        { "10 PRINT \"before\"\n20 GOTO 5 * 5\n30 PRINT \"after\"\n",
+            "before \nUndefined line 25" },
+        { "10 GOSUB 30\n20 PRINT \"back\"\n30 RETURN\n",
+            "back \nRETURN without GOSUB" },
+        { "10 FOR I = 3 TO 1\n20 PRINT I\n",
+            "FOR I without NEXT" },
+    };
+
+    // Programs the JIT leaves to the interpreter, which still have to run the same
+    private static final String[][] INTERPRETED = {
+        { "10 GOTO 30\n20 FOR I = 1 TO 3\n30 PRINT I\n40 NEXT I\n",
+            "0.0 \nNEXT without FOR" },
+        { "10 LET N = 30\n20 GOTO N\n30 FOR I = 1 TO 2\n40 PRINT I\n50 NEXT I\n",
+            "1.0 \n2.0 \n" },
+    };
+
+    private static String run(Executable program)
+    {
+        var message = new StringBuilder();
+        var output = InterpreterTest.capture(() -> {
+            try {
+                program.execute();
+            } catch (IllegalStateException e) {
+                message.append(e.getMessage());
+            }
+        });
+        return output + message;
+    }
+
+    @Test
+    public void everyBackendPrintsTheSame() throws Exception
+    {
+        for (var program : PROGRAMS) {
+            var tree = ParserTest.parse(program[0]);
+            for (var backend : BACKENDS.entrySet()) {
+                assertEquals(backend.getKey() + " running\n" + program[0], program[1], run(backend.getValue().apply(tree)));
+            }
+        }
+    }
+
+    @Test
+    public void jumpsIntoLoopsRunAsInterpreted() throws Exception
+    {
+        for (var program : INTERPRETED) {
+            var tree = ParserTest.parse(program[0]);
+            var linked = Program.link(tree.compile());
+            assertSame(program[0], linked, JitCompiler.compileOrInterpret(linked));
+            for (var backend : BACKENDS.entrySet()) {
+                assertEquals(backend.getKey() + " running\n" + program[0], program[1], run(backend.getValue().apply(tree)));
+            }
+        }
+    }
+
+    @Test
+    public void negativeStepsCountDown()
+    {
+        // the parser only takes unsigned STEP constants, so this loop is built by hand
+        var y = new ParseTree.VarNode("Y");
+        var tree = new ParseTree.LinesNode(List.of(
+                new ParseTree.LineNode(new ParseTree.NumberNode(10), List.of(
+                        new ParseTree.ForNode("Y", new ParseTree.NumberNode(3), new ParseTree.NumberNode(1), new ParseTree.NumberNode(-1)),
+                        new ParseTree.PrintNode(List.of(y)),
+                        new ParseTree.NextNode(List.of("Y")))),
+                new ParseTree.LineNode(new ParseTree.NumberNode(20), List.of(new ParseTree.PrintNode(List.of(y))))));
+        for (var backend : BACKENDS.entrySet()) {
+            assertEquals(backend.getKey(), "3.0 \n2.0 \n1.0 \n0.0 \n", run(backend.getValue().apply(tree)));
+        }
+    }
+
+    @Test
+    public void numericProgramsAreCompiled() throws Exception
+    {
+        for (var program : PROGRAMS) {
+            var linked = Program.link(InterpreterTest.compile(program[0]));
+            assertTrue(program[0], JitCompiler.compileOrInterpret(linked) instanceof JitProgram);
+        }
+    }
+
+    @Test
+    public void numericProgramsAreClosureCompiled() throws Exception
+    {
+        for (var program : PROGRAMS) {
+            assertTrue(program[0], ClosureCompiler.compileOrInterpret(ParserTest.parse(program[0])) instanceof ClosureProgram);
+        }
+    }
+
+    @Test
+    public void stringVariablesFallBackToTheInterpreter() throws Exception
+    {
+        var tree = ParserTest.parse("10 LET A = \"text\"\n20 PRINT A\n");
+        var program = Program.link(tree.compile());
+        assertSame(program, JitCompiler.compileOrInterpret(program));
+        assertEquals("text \n", run(JitCompiler.compileOrInterpret(program)));
+        assertTrue(ClosureCompiler.compileOrInterpret(tree) instanceof Program);
+        assertEquals("text \n", run(ClosureCompiler.compileOrInterpret(tree)));
+    }
+
+    @Test
+    public void stringsTooLongForAClassFileFallBackToTheInterpreter() throws Exception
+    {
+        var text = "\u00e9".repeat(40_000);
+        var program = Program.link(ParserTest.parse("10 PRINT \"" + text + "\"\n").compile());
+        assertSame(program, JitCompiler.compileOrInterpret(program));
+        assertEquals(text + " \n", run(JitCompiler.compileOrInterpret(program)));
+    }
+
+    @Test
+    public void programsTooLargeForOneMethodAreSplitIntoBlocks() throws Exception
+    {
+        // a loop around 4,000 lines, with GOSUBs and a computed GOSUB between the ends of the program
+        var source = new StringBuilder("10 LET B = 1 : GOSUB 90000\n20 FOR I = 1 TO 3\n");
+        for (var line = 0; line < 4000; line++) {
+            source.append(100 + line * 10).append(" LET A = A * 0.5 + (I * 2 - B / 3) * (C + 1.5) - (A / 7 + I * B)\n");
+            if (line == 2000) source.append("20105 GOSUB 90010 + 10 * I\n");
+        }
+        source.append("80000 NEXT I\n80010 PRINT A, B, C\n80020 END\n")
+                .append("90000 LET B = B + 1 : RETURN\n90020 LET C = C + 1 : RETURN\n90030 LET C = C + 2 : RETURN\n90040 LET C = C + 3 : RETURN\n");
+        var tree = ParserTest.parse(source.toString());
+        var program = JitCompiler.compile(tree);
+        assertEquals(run(Program.link(tree.compile())), run(program));
+        assertEquals(6.0, program.execute().get("C"));
+    }
+
+    @Test
+    public void compiledProgramsReturnTheirVariables() throws Exception
+    {
+        var program = JitCompiler.compile(ParserTest.parse("10 LET B = 2\n20 FOR I = 1 TO 4 : LET A = A + B * I : NEXT I\n"));
+        var expected = new LinkedHashMap<String, Object>();
+        expected.put("B", 2.0);
+        expected.put("I", 5.0);
+        expected.put("A", 20.0);
+        assertEquals(expected, program.execute().toMap());
+    }
+
+}
@@ -0,0 +1,99 @@
+package cpl_parser_project_summer_2021.parser;
+
+import static cpl_parser_project_summer_2021.parser.ParseTree.*;
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class ConstantFolderTest
+{
+    private static ExpressionTree folded(String expression) throws Exception
+    {
+        var tree = new ConstantFolder().fold(ParserTest.parse("10 LET X = " + expression + "\n"));
+        return ((LetNode) tree.lines().get(0).statements().get(0)).value();
+    }
+
+    // What the program prints, or the simple name of the exception it fails with
+    private static String run(String program, boolean fold) throws Exception
+    {
+        var tree = ParserTest.parse(program);
+        var compiled = (fold ? new ConstantFolder().fold(tree) : tree).compile();
+        try {
+            return InterpreterTest.capture(() -> Instruction.execute(compiled));
+        } catch (RuntimeException e) {
+            return e.getClass().getSimpleName();
+        }
+    }
+
+    @Test
+    public void constantSubtreesBecomeNumbers() throws Exception
+    {
+        assertEquals(new NumberNode(14), folded("2 + 3 * 4"));
+        assertEquals(new NumberNode(-6), folded("-(2 * 3)"));
+        assertEquals(new NumberNode(5), folded("SQR(16) + ABS(-1)"));
+        assertEquals(new NumberNode(1), folded("1 < 2 AND NOT 0"));
+        assertEquals(new NumberNode(1), folded("\"a\" < \"b\""));
+        assertEquals(new BinaryExpressionNode(BinaryOperation.ADD, new VarNode("A"), new NumberNode(6)), folded("A + 2 * 3"));
+    }
+
+    @Test
+    public void identitiesAreSimplified() throws Exception
+    {
+        var sqr = new FunctionExpressionNode(FunctionName.SQR, new VarNode("A"));
+        assertEquals(sqr, folded("SQR(A) * 1"));
+        assertEquals(sqr, folded("1 * SQR(A)"));
+        assertEquals(sqr, folded("SQR(A) - 0"));
+        assertEquals(sqr, folded("SQR(A) / (3 - 2)"));
+        assertEquals(sqr, folded("--SQR(A)"));
+        var sum = new BinaryExpressionNode(BinaryOperation.ADD, new VarNode("A"), new VarNode("B"));
+        assertEquals(sum, folded("(A + B) * 1"));
+    }
+
+    @Test
+    public void identitiesThatChangeResultsAreKept() throws Exception
+    {
+        var zero = "10 LET X = -0\n20 PRINT X + 0, 0 + X, X - (-0), (X * 1) + 0\n";
+        assertEquals("0.0 0.0 0.0 0.0 \n", run(zero, false));
+        assertEquals(run(zero, false), run(zero, true));
+        assertEquals(new BinaryExpressionNode(BinaryOperation.ADD, new VarNode("A"), new NumberNode(0)), folded("A + 0"));
+    }
+
+    @Test
+    public void variablesAreNotAssumedToBeNumbers() throws Exception
+    {
+        for (var expression : List.of("A + 0", "A * 1", "1 * A", "A / 1", "A - 0", "- - A")) {
+            var program = "10 LET A = \"hi\"\n20 PRINT " + expression + "\n";
+            assertEquals(expression, "ClassCastException", run(program, false));
+            assertEquals(expression, "ClassCastException", run(program, true));
+        }
+    }
+
+    @Test
+    public void rndAndStringArithmeticAreLeftAlone() throws Exception
+    {
+        var rnd = new FunctionExpressionNode(FunctionName.RND, new NumberNode(10));
+        assertEquals(rnd, folded("RND(10)"));
+        assertEquals(new BinaryExpressionNode(BinaryOperation.ADD, new StringNode("a"), new NumberNode(0)), folded("\"a\" + 0"));
+    }
+
+    @Test
+    public void constantConditionsAndDestinationsAreResolved() throws Exception
+    {
+        var folder = new ConstantFolder();
+        var tree = folder.fold(ParserTest.parse("10 IF 1 > 2 THEN 40\n20 IF 2 > 1 THEN 40\n30 GOSUB 20 + 20\n40 PRINT 2 * A\n"));
+        var lines = tree.lines();
+        assertEquals(List.of(new BlankStatementNode()), lines.get(0).statements());
+        assertEquals(List.of(new GotoNode(new NumberNode(40))), lines.get(1).statements());
+        assertEquals(List.of(new GosubNode(new NumberNode(40))), lines.get(2).statements());
+        assertEquals(List.of(
+                "10: (1.0 > 2.0) -> 0.0",
+                "10: IF 0.0 THEN 40 -> (removed)",
+                "20: (2.0 > 1.0) -> 1.0",
+                "20: IF 1.0 THEN 40 -> GOTO 40",
+                "30: (20.0 + 20.0) -> 40.0"), folder.report());
+        assertEquals("0.0 \n", InterpreterTest.capture(() -> Instruction.execute(tree.compile())));
+    }
+
+}
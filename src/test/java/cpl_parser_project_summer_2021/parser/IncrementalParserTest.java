@@ -0,0 +1,89 @@
+package cpl_parser_project_summer_2021.parser;
+
+import static cpl_parser_project_summer_2021.parser.ParseTree.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+public class IncrementalParserTest
+{
+    private static final String PROGRAM = "10 LET A = 1\n20 LET B = 2\n30 PRINT A, B\n40 END\n";
+
+    private static IncrementalParser load(String source) throws Exception
+    {
+        return new IncrementalParser(new Lexer(ByteBuffer.wrap(source.getBytes(StandardCharsets.ISO_8859_1))));
+    }
+
+    @Test
+    public void editReusesUntouchedLines() throws Exception
+    {
+        var parser = load(PROGRAM);
+        var before = parser.tree().lines();
+        var after = parser.edit(20, "20 LET B = A + 41").lines();
+        assertEquals(4, after.size());
+        assertSame(before.get(0), after.get(0));
+        assertNotSame(before.get(1), after.get(1));
+        assertSame(before.get(2), after.get(2));
+        assertSame(before.get(3), after.get(3));
+        assertEquals(ParserTest.parse(PROGRAM.replace("LET B = 2", "LET B = A + 41")), parser.tree());
+    }
+
+    @Test
+    public void editsInsertMoveAndDeleteByLineNumber() throws Exception
+    {
+        var parser = load(PROGRAM);
+        parser.edit("25 PRINT B\n5 PRINT A");
+        parser.edit(30, "35 PRINT B, A");
+        parser.delete(40);
+        parser.edit(10, "");
+        var numbers = parser.tree().lines().stream().map(line -> line.number().value()).toList();
+        assertEquals(List.of(5.0, 20.0, 25.0, 35.0), numbers);
+    }
+
+    @Test
+    public void failedEditLeavesProgramUnchanged() throws Exception
+    {
+        var parser = load(PROGRAM);
+        var before = parser.tree();
+        try {
+            parser.edit(20, "20 LET = 2");
+            throw new AssertionError("expected a ParserException");
+        } catch (ParserException expected) {
+            assertSame(before, parser.tree());
+        }
+    }
+
+    @Test
+    public void lineNumbersThatAreNotWholeIntsAreRejected() throws Exception
+    {
+        var parser = load(PROGRAM);
+        var before = parser.tree();
+        for (var text : List.of("10.5 PRINT 1", "4294967306 PRINT 1")) {
+            try {
+                parser.edit(text);
+                throw new AssertionError("expected a ParserException for " + text);
+            } catch (ParserException expected) {
+                assertSame(before, parser.tree());
+            }
+        }
+    }
+
+    @Test
+    public void compileOnlyRecompilesEditedLines() throws Exception
+    {
+        var parser = load(PROGRAM);
+        var first = parser.compile();
+        parser.edit(20, "20 LET B = 3");
+        var second = parser.compile();
+        assertEquals(parser.tree().compile(), second);
+        assertSame(first.get(0), second.get(0));
+        assertNotSame(first.get(3), second.get(3));
+    }
+
+}
@@ -0,0 +1,194 @@
+package cpl_parser_project_summer_2021.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+public class InterpreterTest
+{
+    private static final String PROGRAM = "10 LET A = 5\n"
+            + "20 LET B = A - INT (A/2) * 2\n"
+            + "30 PRINT B, -A * 3 / 4, \"done\"\n"
+            + "40 LET C = SQR(16) + ABS(-2) - 10 - 2\n"
+            + "50 PRINT C\n"
+            + "60 END\n"
+            + "70 PRINT \"unreachable\"\n";
+
+    static List<Instruction> compile(String source) throws Exception
+    {
+        return ParserTest.parse(source).compile();
+    }
+
+    static String capture(Runnable program)
+    {
+        var out = System.out;
+        var buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+        try {
+            program.run();
+        } finally {
+            System.setOut(out);
+        }
+        return buffer.toString(StandardCharsets.UTF_8).replace(System.lineSeparator(), "\n");
+    }
+
+    @Test
+    public void bytecodeMatchesRecordInterpreter() throws Exception
+    {
+        var instructions = compile(PROGRAM);
+        var expected = "1.0 -3.75 done \n-6.0 \n";
+        assertEquals(expected, capture(() -> Instruction.execute(instructions)));
+        assertEquals(expected, capture(() -> Bytecode.assemble(instructions).execute()));
+    }
+
+    @Test
+    public void unsetVariablesReadAsZero() throws Exception
+    {
+        var instructions = compile("10 LET B = A + 1\n20 PRINT A, B\n");
+        assertEquals("0.0 1.0 \n", capture(() -> Instruction.execute(instructions)));
+        assertEquals("0.0 1.0 \n", capture(() -> Bytecode.assemble(instructions).execute()));
+    }
+
+    @Test
+    public void operandStackKeepsNumbersAndReferencesApart()
+    {
+        var stack = new OperandStack(1);
+        for (var i = 0; i < 100; i++) {
+            if (i % 3 == 0) stack.pushReference("s" + i);
+            else stack.pushNumber(i);
+        }
+        assertEquals(100, stack.size());
+        for (var i = 99; i >= 0; i--) {
+            if (i % 3 == 0) assertEquals("s" + i, stack.popReference());
+            else assertEquals(i, stack.popNumber(), 0);
+        }
+        assertEquals(0, stack.size());
+    }
+
+    @Test
+    public void variablesAreResolvedToSlotsAndListedByName() throws Exception
+    {
+        var program = Program.link(compile("10 LET B = 2\n20 LET A = B * 3\n30 LET B = \"text\"\n"));
+        assertEquals(List.of("B", "A"), program.variables());
+        assertEquals(new Instruction.StoreVar(0, "B"), program.code().get(1));
+        assertEquals(new Instruction.LoadVar(0, "B"), program.code().get(2));
+        var expected = new LinkedHashMap<String, Object>();
+        expected.put("B", "text");
+        expected.put("A", 6.0);
+        assertEquals(expected, program.execute().toMap());
+        assertEquals(expected, Bytecode.assemble(program.code()).execute().toMap());
+    }
+
+    private static final String CONTROL_FLOW = "10 LET I = 1\n"
+            + "20 LET S = 0\n"
+            + "30 GOSUB 100\n"
+            + "40 LET I = I + 1\n"
+            + "50 IF I <= 5 AND NOT I = 0 THEN 30\n"
+            + "60 PRINT S\n"
+            + "70 GOTO 40 + 50\n"
+            + "80 PRINT \"skipped\"\n"
+            + "90 PRINT \"computed\"\n"
+            + "95 END\n"
+            + "100 LET S = S + I\n"
+            + "110 RETURN\n";
+
+    @Test
+    public void jumpsFollowTheLineTable() throws Exception
+    {
+        var instructions = compile(CONTROL_FLOW);
+        var expected = "15.0 \ncomputed \n";
+        assertEquals(expected, capture(() -> Instruction.execute(instructions)));
+        assertEquals(expected, capture(() -> Bytecode.assemble(instructions).execute()));
+        var lines = new Parser(new Lexer(ByteBuffer.wrap(CONTROL_FLOW.getBytes(StandardCharsets.ISO_8859_1)))).lines();
+        assertEquals(expected, capture(() -> Instruction.execute(lines)));
+    }
+
+    @Test
+    public void streamedProgramsJumpBackToLinesAlreadyRun() throws Exception
+    {
+        var source = "10 LET A = A + 1\n20 PRINT A + 1 - 1\n30 IF A < 3 THEN 10\n40 PRINT A + 1\n";
+        var lines = new Parser(new Lexer(ByteBuffer.wrap(source.getBytes(StandardCharsets.ISO_8859_1)))).lines();
+        assertEquals("1.0 \n2.0 \n3.0 \n4.0 \n", capture(() -> Instruction.execute(lines)));
+    }
+
+    @Test
+    public void undefinedLinesFailOnlyWhenJumpedTo() throws Exception
+    {
+        var instructions = compile("10 IF 0 THEN 99\n20 PRINT \"ok\"\n30 GOTO 99\n");
+        for (Runnable program : List.<Runnable>of(() -> Instruction.execute(instructions), () -> Bytecode.assemble(instructions).execute())) {
+            try {
+                capture(program);
+                throw new AssertionError("expected an undefined line");
+            } catch (IllegalStateException e) {
+                assertEquals("Undefined line 99", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void lineTableLooksUpDenseAndSparseNumbers()
+    {
+        var dense = new LineTable(new int[] { 30, 10, 20, 10 }, new int[] { 7, 0, 4, 9 });
+        assertTrue(dense.isDense());
+        assertEquals(0, dense.index(10));
+        assertEquals(4, dense.index(20));
+        assertEquals(7, dense.index(30));
+        assertEquals(-1, dense.index(15));
+        assertEquals(-1, dense.index(40));
+        var sparse = new LineTable(new int[] { 1, 1_000_000, 50_000 }, new int[] { 0, 2, 1 });
+        assertFalse(sparse.isDense());
+        assertEquals(1, sparse.index(50_000));
+        assertEquals(2, sparse.index(1_000_000));
+        assertEquals(-1, sparse.index(2));
+    }
+
+    @Test
+    public void forLoopsNestStepAndSkip() throws Exception
+    {
+        var instructions = compile("10 LET S = 0\n"
+                + "20 FOR I = 1 TO 3\n"
+                + "30 FOR J = 1 TO I\n"
+                + "40 LET S = S + J\n"
+                + "50 NEXT J, I\n"
+                + "60 FOR K = 5 TO 1\n"
+                + "70 PRINT \"never\"\n"
+                + "80 NEXT K\n"
+                + "90 FOR X = 0 TO 1 STEP 0.25 : LET C = C + 1 : NEXT X\n"
+                + "100 PRINT S, I, K, C\n");
+        var expected = "10.0 4.0 5.0 5.0 \n";
+        assertEquals(expected, capture(() -> Instruction.execute(instructions)));
+        assertEquals(expected, capture(() -> Bytecode.assemble(instructions).execute()));
+    }
+
+    @Test
+    public void peepholeSuperinstructionsBehaveLikeTheOriginalCode() throws Exception
+    {
+        var instructions = compile("10 LET I = 0\n"
+                + "20 LET I = I + 1\n"
+                + "30 LET S = S * 2 - I / 4 + I\n"
+                + "40 IF I < 10 THEN 20\n"
+                + "50 LET I = I - 0.5\n"
+                + "60 PRINT I, S\n");
+        var plain = Program.link(instructions, false);
+        var optimized = Program.link(instructions, true);
+        assertTrue(optimized.code().contains(new Instruction.IncrementVar(0, "I", 1)));
+        assertTrue(optimized.code().contains(new Instruction.IncrementVar(0, "I", -0.5)));
+        assertTrue(optimized.code().stream().anyMatch(instruction -> instruction instanceof Instruction.JumpIfVarCompare));
+        assertTrue(optimized.code().size() < plain.code().size());
+        var expected = capture(plain::execute);
+        assertEquals("9.5 1527.0 \n", expected);
+        assertEquals(expected, capture(optimized::execute));
+        assertEquals(expected, capture(() -> Bytecode.assemble(plain).execute()));
+        assertEquals(expected, capture(() -> Bytecode.assemble(optimized).execute()));
+    }
+
+}
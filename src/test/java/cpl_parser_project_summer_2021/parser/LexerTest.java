@@ -0,0 +1,161 @@
+package cpl_parser_project_summer_2021.parser;
+
+import static cpl_parser_project_summer_2021.parser.Token.Type.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LexerTest
+{
+    private static final Set<String> KEYWORDS = Set.of(
+            "CLOSE", "DATA", "DIM", "END", "FOR", "GOTO", "GOSUB", "IF", "INPUT", "LET", "NEXT", "PRINT", "READ",
+            "RETURN", "STOP", "TO", "STEP", "THEN", "ABS", "ATN", "COS", "EXP", "INT", "LOG", "RND", "SIN", "SQR",
+            "TAN", "AND", "OR", "NOT");
+
+    private static final String PROGRAM = "10 REM tokens of every kind\r\n"
+            + "20 LET A = 5 : LET b$ = \"Hi there\"\n"
+            + "30 IF A <= 3.25 THEN 10\r"
+            + "40 PRINT A <> B, A >= .5; (A - 1) * 2 / 4 ^ 2 # c%\n"
+            + "50 GOTO 20\n";
+
+    private static List<Token> tokens(Lexer lexer) throws IOException, LexerException
+    {
+        var tokens = new ArrayList<Token>();
+        Token token;
+        do {
+            token = lexer.getNextToken();
+            tokens.add(token);
+        } while (token.type() != EOF);
+        return tokens;
+    }
+
+    @Test
+    public void mappedFileMatchesStream() throws Exception
+    {
+        var file = Files.createTempFile("lexer", ".bas");
+        try {
+            Files.writeString(file, PROGRAM, StandardCharsets.ISO_8859_1);
+            var streamed = tokens(new Lexer(new ByteArrayInputStream(PROGRAM.getBytes(StandardCharsets.ISO_8859_1)), KEYWORDS));
+            try (var lexer = new Lexer(file, KEYWORDS)) {
+                assertEquals(streamed, tokens(lexer));
+            }
+            assertEquals(new Token("LET", KEYWORD), streamed.get(4));
+            assertEquals(new Token("\r\n", NEWLINE), streamed.get(2));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void tokensSpanningWindowRefillsMatchMappedFile() throws Exception
+    {
+        var builder = new StringBuilder();
+        for (var line = 1; builder.length() < 300_000; line++) {
+            builder.append(line).append(" PRINT \"").append("x".repeat(line % 97)).append("\"; ABCDEFGHIJ").append(line % 13).append('\n');
+        }
+        var bytes = builder.toString().getBytes(StandardCharsets.ISO_8859_1);
+        // hands out odd-sized reads so tokens straddle window boundaries
+        InputStream trickle = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 4093));
+            }
+        };
+        var file = Files.createTempFile("lexer", ".bas");
+        try {
+            Files.write(file, bytes);
+            try (var lexer = new Lexer(file, KEYWORDS)) {
+                assertEquals(tokens(new Lexer(trickle, KEYWORDS)), tokens(lexer));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void closingLeavesTheCallersStreamOpen() throws Exception
+    {
+        var closed = new boolean[1];
+        var input = new ByteArrayInputStream(PROGRAM.getBytes(StandardCharsets.ISO_8859_1)) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        try (var lexer = new Lexer(input, KEYWORDS)) {
+            lexer.advance();
+        }
+        assertFalse(closed[0]);
+    }
+
+    @Test
+    public void fixedTokensAreShared() throws Exception
+    {
+        var first = tokens(new Lexer(new ByteArrayInputStream(PROGRAM.getBytes(StandardCharsets.ISO_8859_1)), KEYWORDS));
+        var second = tokens(new Lexer(new ByteArrayInputStream(PROGRAM.getBytes(StandardCharsets.ISO_8859_1)), KEYWORDS));
+        for (var i = 0; i < first.size(); i++) {
+            switch (first.get(i).type()) {
+                case ID, STRING, NUMBER -> assertEquals(first.get(i), second.get(i));
+                default -> assertSame(first.get(i), second.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void scannedNumbersMatchParseDouble() throws Exception
+    {
+        var random = new Random(42);
+        var literals = new ArrayList<String>(List.of("0", "7", "5.", ".5", "0.1", "3.14159265", "9007199254740993",
+                "123456789012345678901234567890", "0.000000000000000000000000001", "1.7976931348623157"));
+        for (var i = 0; i < 10_000; i++) {
+            var integer = Long.toString(random.nextLong() >>> (1 + random.nextInt(63)));
+            var cut = random.nextInt(integer.length() + 1);
+            literals.add(integer.substring(0, cut) + "." + integer.substring(cut));
+        }
+        var source = String.join(" ", literals);
+        var lexer = new Lexer(ByteBuffer.wrap(source.getBytes(StandardCharsets.ISO_8859_1)), KEYWORDS);
+        for (var literal : literals) {
+            assertEquals(NUMBER, lexer.advance());
+            assertEquals(literal, Double.parseDouble(literal), lexer.number(), 0);
+        }
+        assertEquals(EOF, lexer.advance());
+    }
+
+    @Test
+    public void keywordsResolveToSharedTokens() throws Exception
+    {
+        var lexer = new Lexer(ByteBuffer.wrap("print Print PRINT$ printer stop step rem x\n".getBytes(StandardCharsets.ISO_8859_1)));
+        var print = lexer.getNextToken();
+        assertEquals(new Token("PRINT", KEYWORD), print);
+        assertSame(Token.Keyword.PRINT, print.keyword());
+        assertSame(print, lexer.getNextToken());
+        assertEquals(new Token("PRINT$", ID), lexer.getNextToken());
+        assertEquals(new Token("PRINTER", ID), lexer.getNextToken());
+        assertSame(Token.Keyword.STOP, lexer.getNextToken().keyword());
+        assertSame(Token.Keyword.STEP, lexer.getNextToken().keyword());
+        assertEquals(REM, lexer.getNextToken().type());
+        assertEquals(NEWLINE, lexer.getNextToken().type());
+    }
+
+    @Test
+    public void keywordsOutsideTheConfiguredSetAreIdentifiers() throws Exception
+    {
+        var lexer = new Lexer(ByteBuffer.wrap("LET CLOSE\n".getBytes(StandardCharsets.ISO_8859_1)), Set.of("LET"));
+        assertSame(Token.Keyword.LET, lexer.getNextToken().keyword());
+        assertEquals(new Token("CLOSE", ID), lexer.getNextToken());
+    }
+
+}
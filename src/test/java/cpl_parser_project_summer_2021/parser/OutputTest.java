@@ -0,0 +1,72 @@
+package cpl_parser_project_summer_2021.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class OutputTest
+{
+    @Test
+    public void writesOnlyWhenFullOrFlushed()
+    {
+        var target = new StringBuilder();
+        var output = new Output(target, 8);
+        output.print(1.5);
+        output.print("ab");
+        assertEquals("", target.toString());
+        output.print("cd");
+        // "1.5 ab " filled 7 of 8 chars, so "cd " could not fit
+        assertEquals("1.5 ab ", target.toString());
+        output.newLine();
+        output.flush();
+        assertEquals("1.5 ab cd " + System.lineSeparator(), target.toString());
+    }
+
+    @Test
+    public void textLongerThanTheBufferGoesStraightThrough()
+    {
+        var target = new StringWriter();
+        var output = new Output(target, 4);
+        output.print("x");
+        output.print("a long string");
+        assertEquals("x a long string", target.toString());
+        output.flush();
+        assertEquals("x a long string ", target.toString());
+    }
+
+    @Test
+    public void programsPrintToAnInjectedOutput() throws Exception
+    {
+        var tree = ParserTest.parse("10 PRINT \"a\", 1\n20 GOSUB 40\n30 END\n40 PRINT 2\n50 RETURN\n");
+        var expected = "a 1.0 " + System.lineSeparator() + "2.0 " + System.lineSeparator();
+        for (Executable program : new Executable[] { Program.link(tree.compile()), Bytecode.assemble(tree.compile()),
+                ClosureCompiler.compile(tree), JitCompiler.compile(tree) }) {
+            var target = new StringBuilder();
+            var printed = InterpreterTest.capture(() -> program.execute(new Output(target)));
+            assertEquals("", printed);
+            assertEquals(program.getClass().getSimpleName(), expected, target.toString());
+        }
+        var target = new StringBuilder();
+        Instruction.execute(ParserTest.parse("10 PRINT 3\n").lines().iterator(), new Output(target));
+        assertEquals("3.0 " + System.lineSeparator(), target.toString());
+    }
+
+    @Test
+    public void outputIsFlushedWhenTheProgramFails() throws Exception
+    {
+        var tree = ParserTest.parse("10 PRINT \"before\"\n20 RETURN\n");
+        for (Executable program : new Executable[] { Program.link(tree.compile()), Bytecode.assemble(tree.compile()),
+                ClosureCompiler.compile(tree), JitCompiler.compile(tree) }) {
+            var target = new StringBuilder();
+            try {
+                program.execute(new Output(target));
+                throw new AssertionError("expected RETURN without GOSUB");
+            } catch (IllegalStateException e) {
+                assertEquals("before " + System.lineSeparator(), target.toString());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+package cpl_parser_project_summer_2021.parser;
+
+import static cpl_parser_project_summer_2021.parser.ParseTree.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class ParserTest
+{
+    static LinesNode parse(String source) throws Exception
+    {
+        return new Parser(new Lexer(ByteBuffer.wrap(source.getBytes(StandardCharsets.ISO_8859_1)))).parseLines();
+    }
+
+    private static ByteBuffer generate(int lines)
+    {
+        var builder = new StringBuilder(lines * 16);
+        for (var i = 1; i <= lines; i++) {
+            builder.append(i * 10).append(switch (i % 4) {
+                case 0 -> " LET A = A + 1 : PRINT A, B;\n";
+                case 1 -> " REM filler\n";
+                case 2 -> " DIM X(1, 2, 3)\n";
+                default -> "\n";
+            });
+        }
+        return ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void listsKeepEveryElementInOrder() throws Exception
+    {
+        var lines = parse("10 PRINT A, B; : DIM X(1, 2)\n20 NEXT I, J\n30 DATA 1, \"two\"; 3\n").lines();
+        assertEquals(3, lines.size());
+        var statements = lines.get(0).statements();
+        assertEquals(new PrintNode(List.of(new VarNode("A"), new VarNode("B"))), statements.get(0));
+        assertEquals(new DimNode("X", List.of(new NumberNode(1), new NumberNode(2))), statements.get(1));
+        assertEquals(new NextNode(List.of("I", "J")), lines.get(1).statements().get(0));
+        var data = List.<ConstantTree>of(new NumberNode(1), new StringNode("two"), new NumberNode(3));
+        assertEquals(new DataNode(data), lines.get(2).statements().get(0));
+    }
+
+    // Lines are parsed in a loop, not by recursing once per line; how parse time grows with the line count
+    // is measured by PipelineBenchmark.parseLines
+    @Test
+    public void millionLineProgramParsesOnASmallStack() throws Exception
+    {
+        var source = generate(1_000_000);
+        var result = new LinesNode[1];
+        var failure = new Throwable[1];
+        var thread = new Thread(null, () -> {
+            try {
+                result[0] = new Parser(new Lexer(source)).parseLines();
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, "small-stack", 256 * 1024);
+        thread.start();
+        thread.join();
+        if (failure[0] != null) throw new AssertionError(failure[0]);
+        var lines = result[0].lines();
+        assertEquals(1_000_000, lines.size());
+        assertEquals(new NumberNode(10), lines.get(0).number());
+        assertEquals(new NumberNode(10_000_000), lines.get(lines.size() - 1).number());
+    }
+
+    private static ExpressionTree expression(String source) throws Exception
+    {
+        return ((LetNode) parse("10 LET X = " + source + "\n").lines().get(0).statements().get(0)).value();
+    }
+
+    private static BinaryExpressionNode binary(BinaryOperation operation, ExpressionTree left, ExpressionTree right)
+    {
+        return new BinaryExpressionNode(operation, left, right);
+    }
+
+    @Test
+    public void expressionsFollowPrecedenceAndAssociateLeft() throws Exception
+    {
+        var a = new VarNode("A");
+        var b = new VarNode("B");
+        var c = new VarNode("C");
+        assertEquals(binary(BinaryOperation.SUBTRACT, binary(BinaryOperation.SUBTRACT, a, b), c), expression("A - B - C"));
+        assertEquals(binary(BinaryOperation.ADD, a, binary(BinaryOperation.MULTIPLY, b, c)), expression("A + B * C"));
+        assertEquals(binary(BinaryOperation.MULTIPLY, new UnaryExpressionNode(UnaryOperation.NEGATE, a), b), expression("-A * B"));
+        assertEquals(binary(BinaryOperation.OR,
+                        binary(BinaryOperation.AND, new UnaryExpressionNode(UnaryOperation.NOT, binary(BinaryOperation.LT, a, b)), b),
+                        c),
+                expression("NOT A < B AND B OR C"));
+        assertEquals(new FunctionExpressionNode(FunctionName.ABS, binary(BinaryOperation.DIVIDE, a, new NumberNode(2))),
+                expression("ABS(A / 2)"));
+    }
+
+    @Test
+    public void longOperatorChainsParseOnASmallStack() throws Exception
+    {
+        var source = new StringBuilder("10 PRINT A");
+        for (var i = 0; i < 100_000; i++) source.append(i % 2 == 0 ? "+B" : "*C");
+        var result = new LinesNode[1];
+        var failure = new Throwable[1];
+        var thread = new Thread(null, () -> {
+            try {
+                result[0] = parse(source.append('\n').toString());
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, "small-stack", 256 * 1024);
+        thread.start();
+        thread.join();
+        if (failure[0] != null) throw new AssertionError(failure[0]);
+        var printed = (BinaryExpressionNode) ((PrintNode) result[0].lines().get(0).statements().get(0)).values().get(0);
+        assertEquals(BinaryOperation.ADD, printed.operation());
+        assertEquals(binary(BinaryOperation.MULTIPLY, new VarNode("B"), new VarNode("C")), printed.right());
+    }
+
+    private static Exception failure(Callable<?> parse)
+    {
+        try {
+            parse.call();
+        } catch (Exception e) {
+            return e;
+        }
+        throw new AssertionError("expected a parse error");
+    }
+
+    @Test
+    public void parallelParseMatchesSequential() throws Exception
+    {
+        var source = generate(50_000);
+        var pool = new ForkJoinPool(4);
+        try {
+            assertEquals(new Parser(new Lexer(source)).parseLines(), ParallelParser.parseLines(source, Lexer.ALL_KEYWORDS, pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelParseReportsTheFirstErrorLikeSequential() throws Exception
+    {
+        var text = new String(generate(50_000).array(), StandardCharsets.ISO_8859_1).replace("\n", "\r\n");
+        text = text.replace("\r\n400050 REM filler", "\r\n400050 LET = 1").replace("\r\n450010 REM", "\r\n450010 PRINT \"oops");
+        var source = ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+        var pool = new ForkJoinPool(4);
+        try {
+            var sequential = failure(() -> new Parser(new Lexer(source)).parseLines());
+            var parallel = failure(() -> ParallelParser.parseLines(source, Lexer.ALL_KEYWORDS, pool));
+            assertEquals(ParserException.class, parallel.getClass());
+            assertEquals(40_005, ((ParserException) parallel).getLine());
+            assertEquals(sequential.getMessage(), parallel.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void streamedLinesMatchParseLines() throws Exception
+    {
+        var source = generate(1_000);
+        assertEquals(new Parser(new Lexer(source)).parseLines().lines(), new Parser(new Lexer(source)).stream().toList());
+    }
+
+    @Test
+    public void streamedLinesAreParsedBeforeTheSourceIsRead() throws Exception
+    {
+        var source = new String(generate(1_000).array(), StandardCharsets.ISO_8859_1);
+        var delivered = new int[1];
+        // hands out one line per read, like a terminal or a slow pipe
+        var input = new InputStream() {
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (delivered[0] == source.length()) return -1;
+                var end = source.indexOf('\n', delivered[0]) + 1;
+                var count = Math.min(len, end - delivered[0]);
+                for (var i = 0; i < count; i++) b[off + i] = (byte) source.charAt(delivered[0]++);
+                return count;
+            }
+        };
+        var lines = new Parser(new Lexer(input)).lines();
+        assertEquals(new NumberNode(10), lines.next().number());
+        assertTrue(delivered[0] < 100);
+        var count = 1;
+        while (lines.hasNext()) {
+            lines.next();
+            count++;
+        }
+        assertEquals(1_000, count);
+        assertEquals(source.length(), delivered[0]);
+    }
+
+    @Test
+    public void streamedErrorsAreWrapped() throws Exception
+    {
+        var lines = new Parser(new Lexer(ByteBuffer.wrap("10 PRINT A\n20 LET = 1\n".getBytes(StandardCharsets.ISO_8859_1)))).lines();
+        lines.next();
+        try {
+            lines.next();
+            throw new AssertionError("expected a parse error");
+        } catch (UncheckedParserException e) {
+            assertEquals(ParserException.class, e.getCause().getClass());
+            assertEquals(2, ((ParserException) e.getCause()).getLine());
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package cpl_parser_project_summer_2021.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.TreeMap;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ProfilerTest
+{
+    private static final String PROGRAM = "10 LET I = 0\n"
+            + "20 GOSUB 100\n"
+            + "30 LET I = I + 1\n"
+            + "40 IF I < 3 THEN 20\n"
+            + "50 GOSUB 200\n"
+            + "60 END\n"
+            + "100 LET S = S + I\n"
+            + "110 RETURN\n"
+            + "200 GOSUB 100\n"
+            + "210 PRINT S\n"
+            + "220 RETURN\n";
+
+    @Test
+    public void countsInstructionsPerLine() throws Exception
+    {
+        var program = Program.link(InterpreterTest.compile(PROGRAM), false);
+        var profiler = new Profiler(program);
+        var output = InterpreterTest.capture(() -> program.execute(profiler));
+        assertEquals("6.0 \n", output);
+        var counts = new TreeMap<Integer, Long>();
+        for (var line : profiler.hotLines()) counts.put(line.line(), line.instructions());
+        // LET S = S + I is LoadVar, LoadVar, Addition, StoreVar; it runs 3 times from line 20 and once from 200
+        assertEquals(Long.valueOf(16), counts.get(100));
+        assertEquals(Long.valueOf(4), counts.get(110));
+        assertEquals(Long.valueOf(3), counts.get(20));
+        assertEquals(Long.valueOf(1), counts.get(60));
+        assertEquals(List.of(10, 20, 30, 40, 50, 60, 100, 110, 200, 210, 220), counts.keySet().stream().toList());
+        assertTrue(profiler.report().contains("instructions"));
+    }
+
+    @Test
+    public void collapsedStacksIncludeGosubFrames() throws Exception
+    {
+        var program = Program.link(InterpreterTest.compile(PROGRAM), false);
+        var profiler = new Profiler(program);
+        InterpreterTest.capture(() -> program.execute(profiler));
+        var out = new StringWriter();
+        profiler.writeCollapsed(out);
+        var stacks = List.of(out.toString().split("\n"));
+        assertTrue(stacks.contains("20;100 12"));
+        assertTrue(stacks.contains("20;110 3"));
+        assertTrue(stacks.contains("50;200;100 4"));
+        assertTrue(stacks.contains("50;210 3"));
+        assertTrue(stacks.contains("10 2"));
+    }
+
+    @Test
+    public void countsAddUpOverRunsAndErrors() throws Exception
+    {
+        var program = Program.link(InterpreterTest.compile("10 LET A = A + 1\n20 RETURN\n"));
+        var profiler = new Profiler(program);
+        for (var run = 0; run < 2; run++) {
+            try {
+                program.execute(profiler);
+                throw new AssertionError("expected RETURN without GOSUB");
+            } catch (IllegalStateException e) {
+                assertEquals("RETURN without GOSUB", e.getMessage());
+            }
+        }
+        assertEquals(2, profiler.hotLines().size());
+        assertEquals(2, profiler.hotLines().stream().filter(line -> line.line() == 20).findFirst().orElseThrow().instructions());
+    }
+
+}
@@ -0,0 +1,108 @@
+package cpl_parser_project_summer_2021.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ProgramCacheTest
+{
+    private static ByteBuffer source(String text)
+    {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void sameSourceAndKeywordsShareOneProgram() throws Exception
+    {
+        var cache = new ProgramCache(10, 1000);
+        var program = cache.get(source("10 PRINT 1 + 2\n"));
+        assertSame(program, cache.get(source("10 PRINT 1 + 2\n")));
+        assertNotSame(program, cache.get(source("10 PRINT 1 + 3\n")));
+        // another keyword set is another entry, even where it makes no difference to this source
+        assertNotSame(program, cache.get(source("10 PRINT 1 + 2\n"), Set.of("PRINT")));
+        assertEquals(new ProgramCache.Stats(1, 3, 0, 3, 45), cache.stats());
+
+        var printed = new StringBuilder();
+        program.execute(new Output(printed));
+        assertEquals("3.0 " + System.lineSeparator(), printed.toString());
+    }
+
+    @Test
+    public void leastRecentlyUsedProgramsAreEvictedByCountAndWeight() throws Exception
+    {
+        var cache = new ProgramCache(2, 40);
+        var a = cache.get(source("10 PRINT 1\n"));
+        cache.get(source("20 PRINT 2\n"));
+        assertSame(a, cache.get(source("10 PRINT 1\n")));
+        cache.get(source("30 PRINT 3\n"));
+        // "20 PRINT 2" was the least recently used
+        assertEquals(1, cache.stats().evictions());
+        assertSame(a, cache.get(source("10 PRINT 1\n")));
+
+        // 11 + 30 bytes is over the weight limit, so only the heavy program is kept
+        var heavy = cache.get(source("10 PRINT \"a much longer line\"\n"));
+        assertEquals(new ProgramCache.Stats(2, 4, 3, 1, 30), cache.stats());
+        assertSame(heavy, cache.get(source("10 PRINT \"a much longer line\"\n")));
+    }
+
+    @Test
+    public void concurrentRequestsCompileOnce() throws Exception
+    {
+        var compilations = new AtomicInteger();
+        var release = new CountDownLatch(1);
+        var cache = new ProgramCache(10, 1000, tree -> {
+            compilations.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return Program.link(tree.compile());
+        });
+        var pool = Executors.newFixedThreadPool(32);
+        try {
+            var requests = new ArrayList<CompletableFuture<Executable>>();
+            for (var i = 0; i < 32; i++) {
+                requests.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return cache.get(source("10 PRINT 1\n"));
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }, pool));
+            }
+            while (cache.stats().hits() + cache.stats().misses() < 32) Thread.sleep(1);
+            release.countDown();
+            for (var request : requests) assertSame(requests.get(0).join(), request.join());
+            assertEquals(1, compilations.get());
+            assertEquals(new ProgramCache.Stats(31, 1, 0, 1, 11), cache.stats());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void sourcesThatFailToParseAreNotCached() throws Exception
+    {
+        var cache = new ProgramCache(10, 1000);
+        for (var attempt = 0; attempt < 2; attempt++) {
+            try {
+                cache.get(source("10 PRINT (1\n"));
+                throw new AssertionError("Unbalanced parenthesis should not parse");
+            } catch (ParserException expected) {
+            }
+        }
+        assertEquals(new ProgramCache.Stats(0, 2, 0, 0, 0), cache.stats());
+    }
+}
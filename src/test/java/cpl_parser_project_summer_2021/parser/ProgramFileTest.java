@@ -0,0 +1,102 @@
+package cpl_parser_project_summer_2021.parser;
+
+import static cpl_parser_project_summer_2021.parser.Instruction.*;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class ProgramFileTest
+{
+    private static final String PROGRAM = "10 LET S = 0\n"
+            + "20 FOR I = 1 TO 10 STEP 2\n"
+            + "30 GOSUB 100\n"
+            + "40 NEXT I\n"
+            + "50 LET N = 0\n"
+            + "60 LET N = N + 1\n"
+            + "70 IF N < 5 THEN 60\n"
+            + "80 PRINT S, N, \"sum\", RND(1)\n"
+            + "90 END\n"
+            + "100 LET S = S + I * 2\n"
+            + "110 RETURN\n";
+
+    private static String print(Executable program)
+    {
+        var printed = new StringBuilder();
+        program.execute(new Output(printed), new RandomSource(5));
+        return printed.toString();
+    }
+
+    @Test
+    public void savedProgramsRunLikeTheOriginal() throws Exception
+    {
+        var program = Bytecode.assemble(ParserTest.parse(PROGRAM).compile());
+        var file = Files.createTempFile("program", ".cplb");
+        try {
+            ProgramFile.write(program, file);
+            var loaded = ProgramFile.read(file);
+            assertEquals(print(program), print(loaded));
+            assertEquals("50.0 5.0 sum 0.0 " + System.lineSeparator(), print(loaded));
+            assertEquals(50.0, ProgramFile.read(file).execute(new Output(new StringBuilder())).get("S"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void otherVersionsAndDamagedFilesAreRejected() throws Exception
+    {
+        var file = Files.createTempFile("program", ".cplb");
+        try {
+            ProgramFile.write(Bytecode.assemble(ParserTest.parse(PROGRAM).compile()), file);
+            var bytes = Files.readAllBytes(file);
+
+            var otherVersion = ByteBuffer.wrap(bytes.clone()).putInt(4, ProgramFile.VERSION + 1);
+            assertEquals("Compiled program has format version " + (ProgramFile.VERSION + 1) + ", this interpreter reads version "
+                    + ProgramFile.VERSION, failure(otherVersion));
+            assertEquals("Compiled program is truncated", failure(ByteBuffer.wrap(bytes, 0, bytes.length - 3)));
+            assertEquals("Not a compiled BASIC program", failure(ByteBuffer.wrap("10 PRINT 1\n".getBytes())));
+
+            // header is magic, version, stack depth, code length; the last int is the last line's index
+            var codeLength = ByteBuffer.wrap(bytes).getInt(12);
+            assertEquals("Bad stack depth -1", failure(ByteBuffer.wrap(bytes.clone()).putInt(8, -1)));
+            assertEquals("Stack depth 0 is too small", failure(ByteBuffer.wrap(bytes.clone()).putInt(8, 0)));
+            var jump = Bytecode.JUMP | (codeLength + 1) << Bytecode.OPCODE_BITS;
+            assertEquals("Bad operand at instruction 0", failure(ByteBuffer.wrap(bytes.clone()).putInt(16, jump)));
+            var push = Bytecode.PUSH_NUMBER | 1000 << Bytecode.OPCODE_BITS;
+            assertEquals("Bad operand at instruction 1", failure(ByteBuffer.wrap(bytes.clone()).putInt(20, push)));
+            assertEquals("Bad line index " + (codeLength + 1),
+                    failure(ByteBuffer.wrap(bytes.clone()).putInt(bytes.length - 4, codeLength + 1)));
+
+            assertEquals("Stack underflow at instruction 0", failure(file, 0, Bytecode.ADD));
+            assertEquals("Jump with values on the stack at instruction 1",
+                    failure(file, 1, Bytecode.PUSH_NUMBER, Bytecode.JUMP));
+            assertEquals("Jump into the middle of a statement at instruction 1",
+                    failure(file, 1, Bytecode.PUSH_NUMBER, Bytecode.PRINT, Bytecode.JUMP | 1 << Bytecode.OPCODE_BITS));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // Why a file holding code, one number, and one line at instruction 0 is rejected
+    private static String failure(Path file, int maxStack, int... code) throws IOException
+    {
+        ProgramFile.write(new Bytecode(code, new double[] { 1 }, new String[0], new String[0], new ForLoop[0],
+                new IncrementVar[0], new JumpIfVarCompare[0], new LineTable(new int[] { 10 }, new int[] { 0 }), maxStack), file);
+        return failure(ByteBuffer.wrap(Files.readAllBytes(file)));
+    }
+
+    private static String failure(ByteBuffer source)
+    {
+        try {
+            ProgramFile.read(source);
+            throw new AssertionError("Expected the file to be rejected");
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+}
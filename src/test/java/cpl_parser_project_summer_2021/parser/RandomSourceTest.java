@@ -0,0 +1,77 @@
+package cpl_parser_project_summer_2021.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+public class RandomSourceTest
+{
+    private static final String PROGRAM = "10 FOR I = 1 TO 20\n"
+            + "20 LET X = RND(6) + 1\n"
+            + "30 PRINT X\n"
+            + "40 NEXT I\n";
+
+    private static double[] draw(RandomSource random, int count, int bound)
+    {
+        var values = new double[count];
+        for (var i = 0; i < count; i++) values[i] = random.next(bound);
+        return values;
+    }
+
+    @Test
+    public void sameSeedGivesTheSameNumbers()
+    {
+        var values = draw(new RandomSource(42), 1000, 10);
+        assertTrue(Arrays.equals(values, draw(new RandomSource(42), 1000, 10)));
+        assertTrue(Arrays.stream(values).allMatch(value -> value >= 0 && value < 10 && value == Math.rint(value)));
+        assertEquals(10, Arrays.stream(values).distinct().count());
+    }
+
+    @Test
+    public void bufferingDoesNotChangeTheNumbers()
+    {
+        // 1000 is not a multiple of 64, so the last batch is only partly used
+        assertTrue(Arrays.equals(draw(new RandomSource(7), 1000, 100), draw(new RandomSource(7, 64), 1000, 100)));
+    }
+
+    @Test
+    public void splitStreamsAreIndependent()
+    {
+        var random = new RandomSource(3);
+        var split = random.split();
+        assertFalse(Arrays.equals(draw(random, 50, 1000), draw(split, 50, 1000)));
+        assertTrue(Arrays.equals(draw(new RandomSource(3).split(), 50, 1000), draw(new RandomSource(3).split(), 50, 1000)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void boundMustBePositive()
+    {
+        new RandomSource(1).next(0.5);
+    }
+
+    @Test
+    public void everyBackendDrawsTheSameNumbersForASeed() throws Exception
+    {
+        var tree = ParserTest.parse(PROGRAM);
+        Map<String, Function<ParseTree.LinesNode, Executable>> backends = new LinkedHashMap<>();
+        backends.put("records", lines -> Program.link(lines.compile()));
+        backends.put("bytecode", lines -> Bytecode.assemble(lines.compile()));
+        backends.put("closures", ClosureCompiler::compile);
+        backends.put("jit", JitCompiler::compile);
+        var expected = new StringBuilder();
+        Instruction.execute(tree.lines().iterator(), new Output(expected), new RandomSource(99));
+        assertEquals(20, expected.toString().split(" ").length - 1);
+        for (var backend : backends.entrySet()) {
+            var printed = new StringBuilder();
+            backend.getValue().apply(tree).execute(new Output(printed), new RandomSource(99));
+            assertEquals(backend.getKey(), expected.toString(), printed.toString());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package cpl_parser_project_summer_2021.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class SessionTest
+{
+    private static final String PROGRAM = "10 LET S = 0\n"
+            + "20 FOR I = 1 TO 50\n"
+            + "30 GOSUB 100\n"
+            + "40 NEXT I\n"
+            + "50 PRINT S, RND(1000)\n"
+            + "60 END\n"
+            + "100 LET S = S + I\n"
+            + "110 RETURN\n";
+
+    @Test
+    public void sharedProgramsRunInManySessionsAtOnce() throws Exception
+    {
+        var tree = ParserTest.parse(PROGRAM);
+        List<Executable> programs = List.of(Program.link(tree.compile()), Bytecode.assemble(tree.compile()),
+                ClosureCompiler.compile(tree), JitCompiler.compile(tree));
+        var pool = Executors.newFixedThreadPool(8);
+        try {
+            for (var program : programs) {
+                var targets = new ArrayList<StringBuilder>();
+                for (var i = 0; i < 500; i++) targets.add(new StringBuilder());
+                var runs = Session.startAll(program, targets, new RandomSource(11), pool);
+                var seeds = new RandomSource(11);
+                for (var i = 0; i < runs.size(); i++) {
+                    assertEquals(1275.0, runs.get(i).join().get("S"));
+                    var expected = new StringBuilder();
+                    new Session(program, new Output(expected), seeds.split()).run();
+                    assertEquals(expected.toString(), targets.get(i).toString());
+                    assertTrue(expected.toString().startsWith("1275.0 "));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void failedRunsCompleteTheirFutureExceptionally() throws Exception
+    {
+        var program = Program.link(ParserTest.parse("10 PRINT 1\n20 RETURN\n").compile());
+        var printed = new StringBuilder();
+        var pool = Executors.newSingleThreadExecutor();
+        try {
+            new Session(program, printed).start(pool).join();
+            throw new AssertionError("RETURN without GOSUB should fail");
+        } catch (CompletionException e) {
+            assertEquals("RETURN without GOSUB", e.getCause().getMessage());
+            assertEquals("1.0 " + System.lineSeparator(), printed.toString());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}